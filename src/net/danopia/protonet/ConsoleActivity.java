@@ -17,12 +17,19 @@
 
 package net.danopia.protonet;
 
+import java.util.ArrayList;
+import java.util.List;
+
+import net.danopia.protonet.bean.ChannelBean;
+import net.danopia.protonet.service.MessageStore;
 import net.danopia.protonet.service.TerminalBridge;
 import net.danopia.protonet.service.TerminalManager;
 import net.danopia.protonet.util.PreferenceConstants;
 import android.app.Activity;
+import android.app.AlertDialog;
 import android.content.ComponentName;
 import android.content.Context;
+import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.ServiceConnection;
 import android.content.SharedPreferences;
@@ -46,6 +53,7 @@ import android.view.WindowManager;
 import android.view.MenuItem.OnMenuItemClickListener;
 import android.view.animation.Animation;
 import android.view.animation.AnimationUtils;
+import android.widget.EditText;
 import android.widget.RelativeLayout;
 import android.widget.TextView;
 import android.widget.ViewFlipper;
@@ -73,7 +81,7 @@ public class ConsoleActivity extends Activity {
 
 	private float lastX, lastY;
 
-	private MenuItem disconnect, channel;
+	private MenuItem disconnect, channel, show, find;
 
 	private int lastTouchRow, lastTouchCol;
 
@@ -89,7 +97,7 @@ public class ConsoleActivity extends Activity {
 			Log.d(TAG, String.format("Connected to TerminalManager and found bridges.size=%d", bound.bridges.size()));
 
 			// clear out any existing bridges and record requested index
-			flip.removeAllViews();
+			removeTerminalViews();
 
 			final String requestedNickname = (requested != null) ? requested.getFragment() : null;
 			int requestedIndex = 0;
@@ -126,7 +134,7 @@ public class ConsoleActivity extends Activity {
 					bridge.promptHelper.setHandler(null);
 			}
 
-			flip.removeAllViews();
+			removeTerminalViews();
 			updateEmptyVisible();
 			bound = null;
 		}
@@ -157,6 +165,7 @@ public class ConsoleActivity extends Activity {
 				if (flip.getDisplayedChild() == flipIndex) {
 					shiftCurrentTerminal(SHIFT_LEFT);
 				}
+				destroyTerminalView(flip.getChildAt(flipIndex));
 				flip.removeViewAt(flipIndex);
 
 				/* TODO Remove this workaround when ViewFlipper is fixed to listen
@@ -253,40 +262,20 @@ public class ConsoleActivity extends Activity {
 				// activate consider if within x tolerance
 				if (Math.abs(e1.getX() - e2.getX()) < ViewConfiguration.getTouchSlop() * 4) {
 
-					/*
 					View flip = findCurrentView(R.id.console_flip);
-					if(flip == null) return false;
-					TerminalView terminal = (TerminalView)flip;
+					if (flip == null || !(flip instanceof TerminalView))
+						return false;
+					TerminalView terminal = (TerminalView) flip;
 
-					// estimate how many rows we have scrolled through
-					// accumulate distance that doesn't trigger immediate scroll
+					// accumulate distance that doesn't add up to a whole row yet
 					totalY += distanceY;
-					final int moved = (int)(totalY / terminal.bridge.charHeight);
-
-					// consume as scrollback only if towards right half of screen
-					if (e2.getX() > flip.getWidth() / 2) {
-						if (moved != 0) {
-							int base = terminal.bridge.buffer.getWindowBase();
-							terminal.bridge.buffer.setWindowBase(base + moved);
-							totalY = 0;
-							return true;
-						}
-					} else {
-						// otherwise consume as pgup/pgdown for every 5 lines
-						if (moved > 5) {
-							((vt320)terminal.bridge.buffer).keyPressed(vt320.KEY_PAGE_DOWN, ' ', 0);
-							terminal.bridge.tryKeyVibrate();
-							totalY = 0;
-							return true;
-						} else if (moved < -5) {
-							((vt320)terminal.bridge.buffer).keyPressed(vt320.KEY_PAGE_UP, ' ', 0);
-							terminal.bridge.tryKeyVibrate();
-							totalY = 0;
-							return true;
-						}
+					final int moved = (int) (totalY / terminal.getLineHeight());
 
+					if (moved != 0) {
+						terminal.scrollRows(moved);
+						totalY -= moved * terminal.getLineHeight();
+						return true;
 					}
-					*/
 
 				}
 
@@ -347,6 +336,28 @@ public class ConsoleActivity extends Activity {
 			}
 		});
 
+		show = menu.add(R.string.console_menu_show);
+		show.setAlphabeticShortcut('s');
+		show.setIcon(android.R.drawable.ic_menu_view);
+		show.setEnabled(activeTerminal);
+		show.setOnMenuItemClickListener(new OnMenuItemClickListener() {
+			public boolean onMenuItemClick(MenuItem item) {
+				showChannelPicker((TerminalView) findCurrentView(R.id.console_flip));
+				return true;
+			}
+		});
+
+		find = menu.add(R.string.console_menu_find);
+		find.setAlphabeticShortcut('/');
+		find.setIcon(android.R.drawable.ic_menu_search);
+		find.setEnabled(activeTerminal && ((TerminalView) view).getChannel() != null);
+		find.setOnMenuItemClickListener(new OnMenuItemClickListener() {
+			public boolean onMenuItemClick(MenuItem item) {
+				showFind((TerminalView) findCurrentView(R.id.console_flip));
+				return true;
+			}
+		});
+
 		return true;
 	}
 
@@ -374,10 +385,74 @@ public class ConsoleActivity extends Activity {
 			disconnect.setTitle(R.string.console_menu_close);
 
 		channel.setEnabled(activeTerminal);
+		show.setEnabled(activeTerminal);
+		find.setEnabled(activeTerminal && ((TerminalView) view).getChannel() != null);
 
 		return true;
 	}
 
+	/**
+	 * Ask what to look for in the channel being shown, then scroll to the
+	 * newest line that has it.
+	 */
+	private void showFind(final TerminalView terminalView) {
+		final MessageStore store = terminalView.getChannel();
+		if (store == null)
+			return;
+
+		final EditText query = new EditText(this);
+		query.setSingleLine();
+
+		new AlertDialog.Builder(this)
+			.setTitle(R.string.console_menu_find)
+			.setView(query)
+			.setPositiveButton(R.string.console_menu_find, new DialogInterface.OnClickListener() {
+				public void onClick(DialogInterface dialog, int which) {
+					String text = query.getText().toString();
+					long[] found = store.search(text, 1);
+					if (found.length > 0)
+						terminalView.showLine(found[0]);
+					else
+						terminalView.notifyUser(getString(R.string.console_find_none, text));
+				}
+			})
+			.setNegativeButton(android.R.string.cancel, null).create().show();
+	}
+
+	/**
+	 * Let the user pick which of the bridge's channels the view shows, or
+	 * its own status lines.
+	 */
+	private void showChannelPicker(final TerminalView terminalView) {
+		final TerminalBridge bridge = terminalView.bridge;
+
+		final List<MessageStore> stores = new ArrayList<MessageStore>();
+		final List<String> names = new ArrayList<String>();
+		stores.add(null);
+		names.add(getString(R.string.console_show_status));
+
+		if (bridge.isSessionOpen()) {
+			for (ChannelBean channel : bridge.getChannels()) {
+				MessageStore store = bridge.getMessages(channel);
+				if (store == null)
+					continue;
+				stores.add(store);
+				names.add(channel.getNickname());
+			}
+		}
+
+		new AlertDialog.Builder(this)
+			.setTitle(R.string.console_menu_show)
+			.setSingleChoiceItems(names.toArray(new String[names.size()]),
+					stores.indexOf(terminalView.getChannel()),
+					new DialogInterface.OnClickListener() {
+				public void onClick(DialogInterface dialog, int which) {
+					terminalView.showChannel(stores.get(which));
+					dialog.dismiss();
+				}
+			}).create().show();
+	}
+
 	@Override
 	public void onOptionsMenuClosed(Menu menu) {
 		super.onOptionsMenuClosed(menu);
@@ -469,6 +544,14 @@ public class ConsoleActivity extends Activity {
 		unbindService(connection);
 	}
 
+	@Override
+	public void onDestroy() {
+		super.onDestroy();
+
+		// bridges outlive us; don't let them hold on to our views
+		removeTerminalViews();
+	}
+
 	protected void shiftCurrentTerminal(final int direction) {
 		View overlay;
 		synchronized (flip) {
@@ -559,6 +642,21 @@ public class ConsoleActivity extends Activity {
 		}
 	}
 
+	/* let the bridge shown in this flipper child forget its view */
+	private static void destroyTerminalView(View child) {
+		final View view = child.findViewById(R.id.console_flip);
+		if (view instanceof TerminalView)
+			((TerminalView) view).destroy();
+	}
+
+	private void removeTerminalViews() {
+		synchronized (flip) {
+			for (int i = 0; i < flip.getChildCount(); i++)
+				destroyTerminalView(flip.getChildAt(i));
+			flip.removeAllViews();
+		}
+	}
+
 	private int getFlipIndex(TerminalBridge bridge) {
 		synchronized (flip) {
 			final int children = flip.getChildCount();
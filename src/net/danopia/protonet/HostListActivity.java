@@ -341,6 +341,9 @@ public class HostListActivity extends ListActivity {
 							if(bridge != null)
 								bridge.dispatchDisconnect(true);
 
+							if (bound != null)
+								bound.getTokenCache().invalidate(host);
+
 							hostdb.deleteHost(host);
 							updateHandler.sendEmptyMessage(-1);
 						}
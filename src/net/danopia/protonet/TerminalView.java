@@ -17,9 +17,16 @@
 
 package net.danopia.protonet;
 
+import net.danopia.protonet.service.MessageStore;
 import net.danopia.protonet.service.TerminalBridge;
+import net.danopia.protonet.util.HistoryBuffer;
 import android.app.Activity;
 import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Typeface;
+import android.util.TypedValue;
 import android.view.KeyEvent;
 import android.view.View;
 import android.view.ViewGroup.LayoutParams;
@@ -30,12 +37,58 @@ import android.widget.Toast;
 
 /**
  * User interface {@link View} for showing a TerminalBridge in an
- * {@link Activity}. Handles drawing bitmap updates and passing keystrokes down
- * to terminal.
+ * {@link Activity}. Handles drawing the bridge's history and passing
+ * keystrokes down to terminal.
+ *
+ * Drawing is virtualized: starting from the line at the bottom of the
+ * viewport, lines are laid out and drawn upwards only until the view is
+ * full, so the cost of a frame depends on the screen size and not on how
+ * much history there is. Laid-out lines are cached by sequence number,
+ * which never changes for a line, so scrolling and new lines only lay out
+ * what newly comes into view.
+ *
+ * The viewport either follows the newest line or, once the user scrolls
+ * back, stays anchored to a line; lines arriving below it then don't move
+ * anything on screen.
+ *
+ * The view shows one channel's {@link MessageStore} at a time, or the
+ * bridge's own buffer of status lines and messages from unknown channels.
+ * Scrolled back past what a channel keeps in memory, the lines are paged
+ * in from its history on disk by a worker and drawn once they arrive.
  *
  * @author jsharkey
  */
 public class TerminalView extends View {
+	private static final float FONT_SIZE = 10f;
+	private static final int PADDING = 2;
+
+	private static final int BACKGROUND = Color.BLACK;
+	private static final int FOREGROUND = Color.LTGRAY;
+
+	/* power of two, comfortably more lines than fit on a screen */
+	private static final int LAYOUT_CACHE = 256;
+
+	/*
+	 * Lines as of one frame, by position: the sequence number in the
+	 * bridge's buffer, or the ordinal in a channel's history.
+	 */
+	private static abstract class Lines {
+		abstract long getFirst();
+		abstract long getEnd();
+
+		/* null if the line is gone or not read in yet */
+		abstract String get(long pos);
+	}
+
+	/* rows a line of history wraps to at some width */
+	private static final class Layout {
+		long seq = -1;
+		int width;
+		String text;
+		int rows;
+		int[] starts = new int[4];
+		int[] ends = new int[4];
+	}
 
 	private final Context context;
 	public final TerminalBridge bridge;
@@ -44,6 +97,23 @@ public class TerminalView extends View {
 	private String lastNotification = null;
 	private volatile boolean notifications = true;
 
+	private final Paint paint;
+	private final float lineHeight;
+	private final float descent;
+
+	private final Layout[] layouts = new Layout[LAYOUT_CACHE];
+
+	/*
+	 * Line shown at the bottom and how many of its rows are scrolled off
+	 * below; an anchor of -1 follows the newest line. Only changed on the UI
+	 * thread.
+	 */
+	private volatile long anchor = -1;
+	private int anchorSkip = 0;
+
+	/* channel being shown, or null for the bridge's own lines; UI thread */
+	private MessageStore channel = null;
+
 	public TerminalView(Context context, TerminalBridge bridge) {
 		super(context);
 
@@ -53,11 +123,308 @@ public class TerminalView extends View {
 		setLayoutParams(new LayoutParams(LayoutParams.FILL_PARENT, LayoutParams.FILL_PARENT));
 		setFocusable(true);
 		setFocusableInTouchMode(true);
+
+		paint = new Paint();
+		paint.setAntiAlias(true);
+		paint.setTypeface(Typeface.MONOSPACE);
+		paint.setColor(FOREGROUND);
+		paint.setTextSize(TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_SP, FONT_SIZE,
+				context.getResources().getDisplayMetrics()));
+
+		Paint.FontMetrics metrics = paint.getFontMetrics();
+		lineHeight = (float) Math.ceil(metrics.descent - metrics.ascent);
+		descent = metrics.descent;
+
+		bridge.parentChanged(this);
+	}
+
+	/**
+	 * @return height of one row of text, in pixels
+	 */
+	public float getLineHeight() {
+		return lineHeight;
+	}
+
+	/**
+	 * Whether lines from this sequence number on would be on screen, so the
+	 * bridge can skip redrawing for lines that arrive while we're scrolled
+	 * back. Called from the selector thread.
+	 */
+	public boolean isShowing(long seq) {
+		final long bottom = anchor;
+		return bottom < 0 || seq <= bottom;
+	}
+
+	@Override
+	protected void onDraw(Canvas canvas) {
+		bridge.onDrawStarted();
+		canvas.drawColor(BACKGROUND);
+
+		final Lines history = lines();
+		bridge.onDrawn(history.getEnd());
+		final int width = getWidth() - 2 * PADDING;
+		if (history.getEnd() <= history.getFirst() || width <= 0)
+			return;
+
+		long seq;
+		int skip;
+		if (anchor < 0) {
+			seq = history.getEnd() - 1;
+			skip = 0;
+		} else if (anchor < history.getFirst()) {
+			// our line was evicted while we were scrolled back
+			anchor = seq = history.getFirst();
+			anchorSkip = skip = 0;
+		} else {
+			seq = anchor;
+			skip = anchorSkip;
+		}
+
+		float y = getHeight() - PADDING - descent;
+		for (; seq >= history.getFirst() && y + descent > 0; seq--) {
+			Layout layout = layout(history, seq, width);
+			if (layout == null) {
+				pageIn(seq);
+				break;
+			}
+
+			for (int row = layout.rows - 1 - Math.min(skip, layout.rows - 1); row >= 0 && y + descent > 0; row--) {
+				canvas.drawText(layout.text, layout.starts[row], layout.ends[row], PADDING, y, paint);
+				y -= lineHeight;
+			}
+			skip = 0;
+		}
 	}
 
+	/**
+	 * Scroll the history by whole rows.
+	 * @param rows positive towards newer lines, negative towards older
+	 */
+	public void scrollRows(int rows) {
+		final Lines history = lines();
+		final int width = getWidth() - 2 * PADDING;
+		if (history.getEnd() <= history.getFirst() || width <= 0 || rows == 0)
+			return;
+
+		final long first = history.getFirst();
+		final long last = history.getEnd() - 1;
+
+		long seq = (anchor < 0) ? last : Math.max(anchor, first);
+		int skip = (anchor < 0) ? 0 : anchorSkip;
+
+		for (; rows < 0; rows++) {
+			Layout layout = layout(history, seq, width);
+			if (layout != null && skip < layout.rows - 1) {
+				skip++;
+			} else if (seq > first) {
+				seq--;
+				skip = 0;
+			} else {
+				break;
+			}
+		}
+
+		// don't scroll the oldest line further down than the top of the view
+		final int visible = (int) ((getHeight() - 2 * PADDING) / lineHeight);
+		int above = 0;
+		for (long s = seq; s >= first && above < visible; s--) {
+			Layout layout = layout(history, s, width);
+			if (layout == null) {
+				// not read back yet; it takes up at least a row
+				pageIn(s);
+				above++;
+				continue;
+			}
+			above += (s == seq) ? layout.rows - Math.min(skip, layout.rows - 1) : layout.rows;
+		}
+		if (above < visible)
+			rows = Math.max(rows, visible - above);
+
+		for (; rows > 0; rows--) {
+			if (skip > 0) {
+				skip--;
+			} else if (seq < last) {
+				seq++;
+				Layout layout = layout(history, seq, width);
+				skip = (layout != null) ? layout.rows - 1 : 0;
+			} else {
+				break;
+			}
+		}
+
+		if (seq >= last && skip == 0) {
+			anchor = -1;
+			anchorSkip = 0;
+		} else {
+			anchor = seq;
+			anchorSkip = skip;
+		}
+		invalidate();
+	}
+
+	/**
+	 * Show this channel's messages instead, following its newest line.
+	 * @param channel store of the channel, or null for the bridge's own lines
+	 */
+	public void showChannel(MessageStore channel) {
+		this.channel = channel;
+
+		// sequence numbers from the old source mean nothing in the new one
+		for (Layout layout : layouts)
+			if (layout != null)
+				layout.seq = -1;
+
+		scrollToBottom();
+	}
+
+	/**
+	 * @return store of the channel being shown, or null for the bridge's own
+	 *         lines
+	 */
+	public MessageStore getChannel() {
+		return channel;
+	}
+
+	private Lines lines() {
+		if (channel != null) {
+			final MessageStore.Window window = channel.window();
+			return new Lines() {
+				long getFirst() {
+					return window.getFirst();
+				}
+
+				long getEnd() {
+					return window.getEnd();
+				}
+
+				String get(long pos) {
+					return window.get(pos);
+				}
+			};
+		}
+
+		final HistoryBuffer.Snapshot snapshot = bridge.buffer.snapshot();
+		return new Lines() {
+			long getFirst() {
+				return snapshot.getFirst();
+			}
+
+			long getEnd() {
+				return snapshot.getEnd();
+			}
+
+			String get(long pos) {
+				return snapshot.get(pos);
+			}
+		};
+	}
+
+	/* have a line of the channel read back from disk, then draw again */
+	private void pageIn(long pos) {
+		if (channel != null)
+			channel.pageIn(pos, redraw);
+	}
+
+	private final Runnable redraw = new Runnable() {
+		public void run() {
+			postInvalidate();
+		}
+	};
+
+	/**
+	 * Scroll so this line is at the bottom of the view.
+	 * @param pos ordinal of a line in the channel being shown
+	 */
+	public void showLine(long pos) {
+		anchor = pos;
+		anchorSkip = 0;
+		invalidate();
+	}
+
+	/**
+	 * Go back to following the newest line.
+	 */
+	public void scrollToBottom() {
+		anchor = -1;
+		anchorSkip = 0;
+		invalidate();
+	}
+
+	/**
+	 * @return whether the newest line is being followed
+	 */
+	public boolean isAtBottom() {
+		return anchor < 0;
+	}
+
+	/* wrap a line to the width, or reuse the last time we did; null if it's gone */
+	private Layout layout(Lines history, long seq, int width) {
+		final int slot = (int) seq & (LAYOUT_CACHE - 1);
+		Layout layout = layouts[slot];
+		if (layout == null)
+			layout = layouts[slot] = new Layout();
+		else if (layout.seq == seq && layout.width == width)
+			return layout;
+
+		final String text = history.get(seq);
+		if (text == null)
+			return null;
+
+		layout.seq = seq;
+		layout.width = width;
+		layout.text = text;
+		layout.rows = 0;
+
+		final int length = text.length();
+		int start = 0;
+		do {
+			// hard breaks first, then as much as fits
+			int end = start;
+			while (end < length && text.charAt(end) != '\n' && text.charAt(end) != '\r')
+				end++;
+
+			int fits = (end > start) ? paint.breakText(text, start, end, true, width, null) : 0;
+			if (end > start && fits == 0)
+				fits = 1;
+
+			addRow(layout, start, start + fits);
+			start += fits;
+
+			if (start == end) {
+				// step over the line break itself, treating \r\n as one
+				if (end < length && text.charAt(end) == '\r')
+					start++;
+				if (start < length && text.charAt(start) == '\n')
+					start++;
+			}
+		} while (start < length);
+
+		return layout;
+	}
+
+	private static void addRow(Layout layout, int start, int end) {
+		if (layout.rows == layout.starts.length) {
+			int[] starts = new int[layout.rows * 2];
+			int[] ends = new int[layout.rows * 2];
+			System.arraycopy(layout.starts, 0, starts, 0, layout.rows);
+			System.arraycopy(layout.ends, 0, ends, 0, layout.rows);
+			layout.starts = starts;
+			layout.ends = ends;
+		}
+		layout.starts[layout.rows] = start;
+		layout.ends[layout.rows] = end;
+		layout.rows++;
+	}
+
+	/**
+	 * The view is going away; stop the bridge redrawing it, and let go of
+	 * the channel and the laid-out lines.
+	 */
 	public void destroy() {
-		// tell bridge to destroy its bitmap
-		bridge.parentDestroyed();
+		bridge.parentDestroyed(this);
+		channel = null;
+		for (int i = 0; i < layouts.length; i++)
+			layouts[i] = null;
 	}
 
 	public void notifyUser(String message) {
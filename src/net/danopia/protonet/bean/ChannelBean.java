@@ -39,6 +39,7 @@ public class ChannelBean extends AbstractBean {
 	/* Transient values */
 	private boolean enabled = false;
 	private Object identifier = null;
+	private long lastMessageId = -1;
 
 	/**
 	 * @param id database ID of port forward
@@ -181,6 +182,20 @@ public class ChannelBean extends AbstractBean {
 		return identifier;
 	}
 
+	/**
+	 * @param lastMessageId id of the newest message seen in this channel
+	 */
+	public void setLastMessageId(long lastMessageId) {
+		this.lastMessageId = lastMessageId;
+	}
+
+	/**
+	 * @return id of the newest message seen in this channel, or -1 if none
+	 */
+	public long getLastMessageId() {
+		return lastMessageId;
+	}
+
 	/**
 	 * @return human readable description of the port forward
 	 */
@@ -12,8 +12,11 @@ import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.Map;
 
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
 import javax.net.ssl.SSLSocket;
 import javax.net.ssl.TrustManager;
 
@@ -24,8 +27,18 @@ import org.apache.http.params.HttpConnectionParams;
 import org.apache.http.params.HttpParams;
 
 public class FakeSocketFactory implements SocketFactory, LayeredSocketFactory {
+        /* sessions kept for resumption, per pinned key */
+        public static final int SESSION_CACHE_SIZE = 32;
+        public static final int SESSION_TIMEOUT = 24 * 60 * 60;
+
+        /*
+         * One context per pinned key for the whole process. The client session
+         * cache lives in the context, so sharing it is what lets a reconnect
+         * resume the previous TLS session with an abbreviated handshake.
+         */
+        private static final Map<String, SSLContext> contexts = new HashMap<String, SSLContext>();
+
         private String certKey = null;
-    private SSLContext sslcontext = null;
 
     public FakeSocketFactory(String certKey){
         this.certKey = certKey;
@@ -36,17 +49,37 @@ public class FakeSocketFactory implements SocketFactory, LayeredSocketFactory {
             try {
                     SSLContext context = SSLContext.getInstance("TLS");
                     context.init(null, new TrustManager[] { new FakeTrustManager(certKey) }, null);
+
+                    SSLSessionContext sessions = context.getClientSessionContext();
+                    if (sessions != null) {
+                            sessions.setSessionCacheSize(SESSION_CACHE_SIZE);
+                            sessions.setSessionTimeout(SESSION_TIMEOUT);
+                    }
+
                     return context;
             } catch (Exception e) {
                     throw new IOException(e.getMessage());
             }
     }
 
-    private SSLContext getSSLContext() throws IOException {
-            if (this.sslcontext == null) {
-                    this.sslcontext = createEasySSLContext(this.certKey);
+    /**
+     * @param certKey pinned certificate thumbprint, or null to accept any
+     * @return the process-wide context for that pin
+     */
+    public static SSLContext getSharedContext(String certKey) throws IOException {
+            String key = (certKey == null) ? "" : certKey.replaceAll("\\s+", "").toLowerCase();
+            synchronized (contexts) {
+                    SSLContext context = contexts.get(key);
+                    if (context == null) {
+                            context = createEasySSLContext(certKey);
+                            contexts.put(key, context);
+                    }
+                    return context;
             }
-            return this.sslcontext;
+    }
+
+    private SSLContext getSSLContext() throws IOException {
+            return getSharedContext(this.certKey);
     }
 
         public Socket connectSocket(Socket sock, String host, int port,
@@ -56,7 +89,7 @@ public class FakeSocketFactory implements SocketFactory, LayeredSocketFactory {
         int soTimeout = HttpConnectionParams.getSoTimeout(params);
 
         InetSocketAddress remoteAddress = new InetSocketAddress(host, port);
-        SSLSocket sslsock = (SSLSocket) ((sock != null) ? sock : createSocket());
+        Socket plain = (sock != null) ? sock : new Socket();
 
         if ((localAddress != null) || (localPort > 0)) {
                 // we need to bind explicitly
@@ -65,16 +98,22 @@ public class FakeSocketFactory implements SocketFactory, LayeredSocketFactory {
                 }
                 InetSocketAddress isa = new InetSocketAddress(localAddress,
                                 localPort);
-                sslsock.bind(isa);
+                plain.bind(isa);
         }
 
-        sslsock.connect(remoteAddress, connTimeout);
-        sslsock.setSoTimeout(soTimeout);
-        return sslsock;
+        plain.connect(remoteAddress, connTimeout);
+        plain.setSoTimeout(soTimeout);
+
+        // layer TLS with the peer's name and port so the session cache can
+        // find an earlier session with this node and resume it
+        if (plain instanceof SSLSocket)
+                return plain;
+        return createSocket(plain, host, port, true);
         }
 
         public Socket createSocket() throws IOException {
-                return getSSLContext().getSocketFactory().createSocket();
+                // plain until connectSocket() layers TLS on top
+                return new Socket();
         }
 
         public boolean isSecure(Socket arg0) throws IllegalArgumentException {
@@ -15,27 +15,33 @@ import java.io.Writer;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.CookieStore;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
-import org.apache.http.conn.scheme.PlainSocketFactory;
-import org.apache.http.conn.scheme.Scheme;
-import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.client.protocol.ClientContext;
 import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.BasicCookieStore;
 import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
-import org.apache.http.params.BasicHttpParams;
-import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HttpContext;
 
+/**
+ * HTTP access to one Protonet node. Connections come from the shared
+ * {@link HttpClientPool}; cookies are kept per Fetcher so sessions on
+ * different nodes don't mix.
+ */
 public class Fetcher {
 	DefaultHttpClient httpclient;
+	HttpContext context;
+	CookieStore cookies;
 	String baseURL;
 
 	public Fetcher(String baseURL) {
-	    SchemeRegistry registry = new SchemeRegistry();
-	    registry.register(new Scheme("http", new PlainSocketFactory(), 80));
-	    registry.register(new Scheme("https", new FakeSocketFactory(), 443));
-        HttpParams httpparams = new BasicHttpParams();
-	    httpclient = new DefaultHttpClient(new ThreadSafeClientConnManager(httpparams, registry), httpparams);
+	    httpclient = HttpClientPool.getClient();
+
+	    cookies = new BasicCookieStore();
+	    context = new BasicHttpContext();
+	    context.setAttribute(ClientContext.COOKIE_STORE, cookies);
 
 	    if (!baseURL.endsWith("/")) baseURL += "/";
 	    this.baseURL = baseURL;
@@ -49,7 +55,7 @@ public class Fetcher {
 		    httpost.setHeader("Content-Type", "application/json");
 		    httpost.setHeader("Accept", "application/json");
 
-		    HttpResponse response = httpclient.execute(httpost);
+		    HttpResponse response = httpclient.execute(httpost, context);
 		    HttpEntity entity = response.getEntity();
 
 		    String content = convertStreamToString(entity.getContent());
@@ -74,7 +80,7 @@ public class Fetcher {
 	public String doGET(String url) throws Exception {
 	    HttpGet httpget = new HttpGet(baseURL + url);
 
-	    HttpResponse response = httpclient.execute(httpget);
+	    HttpResponse response = httpclient.execute(httpget, context);
 	    HttpEntity entity = response.getEntity();
 
 	    String content = convertStreamToString(entity.getContent());
@@ -110,10 +116,9 @@ public class Fetcher {
 	}
 
 
-    // When HttpClient instance is no longer needed,
-    // shut down the connection manager to ensure
-    // immediate deallocation of all system resources
+	// Connections belong to the shared pool and stay open for the next
+	// Fetcher; all we own is the session.
 	public void shutdown() {
-	    httpclient.getConnectionManager().shutdown();
+	    cookies.clear();
 	}
 }
@@ -0,0 +1,115 @@
+/**
+ *
+ */
+package net.danopia.protonet.client;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Splits the realtime socket stream into NUL-terminated frames. Data is read
+ * straight into {@link #getBuffer()}; {@link #decode(Listener)} then scans only
+ * the bytes it has not looked at yet and hands each complete frame out as a
+ * view onto the same array, so nothing is copied except the tail of a frame
+ * that straddles two reads.
+ *
+ * The buffer only grows when a single frame does not fit, and drops back to
+ * its normal size once that frame has been delivered.
+ */
+public class FrameDecoder {
+	public static final int DEFAULT_SIZE = 8192;
+	public static final int MAX_FRAME_SIZE = 4 * 1024 * 1024;
+
+	/**
+	 * Receives complete frames. The buffer passed in, and the bytes behind it,
+	 * are only valid until the callback returns.
+	 */
+	public interface Listener {
+		public void onFrame(ByteBuffer frame) throws IOException;
+	}
+
+	private final int initialSize;
+
+	private ByteBuffer buffer;
+	private ByteBuffer frame;
+
+	/* bytes at the start of the buffer already known to hold no terminator */
+	private int scanned = 0;
+
+	public FrameDecoder() {
+		this(DEFAULT_SIZE);
+	}
+
+	public FrameDecoder(int initialSize) {
+		this.initialSize = initialSize;
+		allocate(initialSize);
+	}
+
+	private void allocate(int size) {
+		ByteBuffer next = ByteBuffer.allocate(size);
+		if (buffer != null) {
+			buffer.flip();
+			next.put(buffer);
+		}
+
+		buffer = next;
+		frame = ByteBuffer.wrap(buffer.array());
+	}
+
+	/**
+	 * @return buffer to read socket data into, guaranteed to have room left
+	 * @throws IOException if a single frame exceeds {@link #MAX_FRAME_SIZE}
+	 */
+	public ByteBuffer getBuffer() throws IOException {
+		if (!buffer.hasRemaining()) {
+			if (buffer.capacity() >= MAX_FRAME_SIZE)
+				throw new IOException("Incoming frame larger than " + MAX_FRAME_SIZE + " bytes");
+
+			allocate(Math.min(buffer.capacity() * 2, MAX_FRAME_SIZE));
+		}
+
+		return buffer;
+	}
+
+	/**
+	 * Deliver every complete frame received so far, then move any partial
+	 * frame to the front of the buffer.
+	 */
+	public void decode(Listener listener) throws IOException {
+		final byte[] data = buffer.array();
+		final int end = buffer.position();
+
+		int start = 0;
+		for (int i = scanned; i < end; i++) {
+			if (data[i] != 0)
+				continue;
+
+			if (i > start) {
+				frame.limit(i);
+				frame.position(start);
+				listener.onFrame(frame);
+			}
+
+			start = i + 1;
+		}
+
+		int remaining = end - start;
+		if (start > 0) {
+			System.arraycopy(data, start, data, 0, remaining);
+			buffer.position(remaining);
+		}
+		scanned = remaining;
+
+		// oversized frame is done; give the memory back
+		if (buffer.capacity() > initialSize && remaining < initialSize)
+			allocate(initialSize);
+	}
+
+	/**
+	 * Drop any partially received frame, e.g. after a reconnect.
+	 */
+	public void reset() {
+		buffer.clear();
+		scanned = 0;
+	}
+}
@@ -0,0 +1,88 @@
+/**
+ *
+ */
+package net.danopia.protonet.client;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+
+/**
+ * Process-wide HTTP client. Every {@link Fetcher} shares one thread safe
+ * connection manager, so keep-alive connections to a Protonet node survive
+ * from one login to the next instead of each Fetcher paying for its own TCP
+ * and TLS setup and leaking its own manager.
+ *
+ * Connections are pooled per route, i.e. per node, and idle ones are closed
+ * lazily whenever the client is handed out.
+ */
+public final class HttpClientPool {
+	public static final int MAX_TOTAL_CONNECTIONS = 12;
+	public static final int MAX_CONNECTIONS_PER_NODE = 2;
+
+	public static final int CONNECT_TIMEOUT = 15 * 1000;
+	public static final int SOCKET_TIMEOUT = 30 * 1000;
+
+	public static final long IDLE_TIMEOUT = 60 * 1000;
+
+	private static DefaultHttpClient client = null;
+	private static long lastEviction = 0;
+
+	private HttpClientPool() {
+	}
+
+	/**
+	 * @return the shared client, created on first use
+	 */
+	public static synchronized DefaultHttpClient getClient() {
+		if (client == null) {
+			SchemeRegistry registry = new SchemeRegistry();
+			registry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+			registry.register(new Scheme("https", new FakeSocketFactory(), 443));
+
+			HttpParams params = new BasicHttpParams();
+			ConnManagerParams.setMaxTotalConnections(params, MAX_TOTAL_CONNECTIONS);
+			ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(MAX_CONNECTIONS_PER_NODE));
+			HttpConnectionParams.setConnectionTimeout(params, CONNECT_TIMEOUT);
+			HttpConnectionParams.setSoTimeout(params, SOCKET_TIMEOUT);
+			HttpConnectionParams.setStaleCheckingEnabled(params, true);
+
+			client = new DefaultHttpClient(new ThreadSafeClientConnManager(params, registry), params);
+			lastEviction = System.currentTimeMillis();
+		} else {
+			evictIdle();
+		}
+
+		return client;
+	}
+
+	private static void evictIdle() {
+		final long now = System.currentTimeMillis();
+		if (now - lastEviction < IDLE_TIMEOUT / 2)
+			return;
+
+		lastEviction = now;
+		client.getConnectionManager().closeIdleConnections(IDLE_TIMEOUT, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Close every pooled connection. The next {@link #getClient()} starts a
+	 * fresh pool.
+	 */
+	public static synchronized void shutdown() {
+		if (client == null)
+			return;
+
+		client.getConnectionManager().shutdown();
+		client = null;
+	}
+}
@@ -0,0 +1,59 @@
+/**
+ *
+ */
+package net.danopia.protonet.client;
+
+/**
+ * Result of an HTTP login: the token and user id the realtime socket
+ * authenticates with, and when we stop trusting them.
+ */
+public class LoginToken {
+	/* the node doesn't tell us, so assume tokens last this long */
+	public static final long DEFAULT_LIFETIME = 12 * 60 * 60 * 1000;
+
+	private final String userId;
+	private final String token;
+	private final String issuedFor;
+	private final long expires;
+
+	/**
+	 * @param issuedFor login and hostname the token was issued for, as
+	 *        returned by {@link #describe(String, String)}
+	 * @param expires wall clock time in milliseconds
+	 */
+	public LoginToken(String userId, String token, String issuedFor, long expires) {
+		this.userId = userId;
+		this.token = token;
+		this.issuedFor = issuedFor;
+		this.expires = expires;
+	}
+
+	public static String describe(String username, String hostname) {
+		return username + "@" + hostname;
+	}
+
+	public String getUserId() {
+		return userId;
+	}
+
+	public String getToken() {
+		return token;
+	}
+
+	public String getIssuedFor() {
+		return issuedFor;
+	}
+
+	public long getExpires() {
+		return expires;
+	}
+
+	/**
+	 * @return whether the token can still be used to log in as this user on
+	 *         this host
+	 */
+	public boolean isValidFor(String username, String hostname) {
+		return expires > System.currentTimeMillis()
+			&& describe(username, hostname).equals(issuedFor);
+	}
+}
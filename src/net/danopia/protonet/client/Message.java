@@ -0,0 +1,291 @@
+/**
+ *
+ */
+package net.danopia.protonet.client;
+
+import net.danopia.protonet.util.Utf8;
+
+/**
+ * One realtime frame as filled in by {@link MessageParser}. Only the spans of
+ * the fields we know about are recorded while parsing; their values are
+ * decoded the first time they are asked for.
+ *
+ * A message points into the frame it was parsed from, so it is only valid
+ * until that frame's callback returns. Copy out any values you need to keep.
+ *
+ * Fields that repeat from frame to frame, like users and channels, are
+ * decoded through the parser's {@link SymbolTable}: the same value is the same
+ * String instance every time, and has an int id from {@link #getSymbol(int)}.
+ */
+public class Message {
+	public static final int OPERATION = 0;
+	public static final int TRIGGER = 1;
+	public static final int ID = 2;
+	public static final int CHANNEL_ID = 3;
+	public static final int CHANNEL_UUID = 4;
+	public static final int MESSAGE = 5;
+	public static final int USER = 6;
+	public static final int USER_ID = 7;
+	public static final int AVATAR = 8;
+	public static final int TOKEN = 9;
+
+	static final int FIELD_COUNT = 10;
+
+	/* fields whose values repeat enough to intern */
+	private static final boolean[] INTERNED = new boolean[FIELD_COUNT];
+	static {
+		INTERNED[OPERATION] = true;
+		INTERNED[TRIGGER] = true;
+		INTERNED[CHANNEL_UUID] = true;
+		INTERNED[USER] = true;
+		INTERNED[USER_ID] = true;
+		INTERNED[AVATAR] = true;
+	}
+
+	/* JSON keys and the field each one is recorded as */
+	static final byte[][] KEYS = {
+		ascii("operation"), ascii("trigger"), ascii("id"), ascii("channel_id"),
+		ascii("channel_uuid"), ascii("message"), ascii("user"), ascii("author"),
+		ascii("user_id"), ascii("avatar"), ascii("token"),
+	};
+	static final int[] KEY_FIELDS = {
+		OPERATION, TRIGGER, ID, CHANNEL_ID,
+		CHANNEL_UUID, MESSAGE, USER, USER,
+		USER_ID, AVATAR, TOKEN,
+	};
+
+	static final byte NONE = 0;
+	static final byte STRING = 1;
+	static final byte STRING_ESCAPED = 2;
+	static final byte LITERAL = 3;
+
+	private byte[] data;
+
+	private final int[] starts = new int[FIELD_COUNT];
+	private final int[] ends = new int[FIELD_COUNT];
+	private final byte[] kinds = new byte[FIELD_COUNT];
+	private final int[] depths = new int[FIELD_COUNT];
+	private final String[] values = new String[FIELD_COUNT];
+	private final int[] symbols = new int[FIELD_COUNT];
+
+	private SymbolTable symbolTable;
+
+	/**
+	 * @return bytes of an ASCII string, for comparing with {@link #matches(int, byte[])}
+	 */
+	public static byte[] ascii(String s) {
+		byte[] b = new byte[s.length()];
+		for (int i = 0; i < b.length; i++)
+			b[i] = (byte) s.charAt(i);
+		return b;
+	}
+
+	void reset(byte[] data, SymbolTable symbolTable) {
+		this.data = data;
+		this.symbolTable = symbolTable;
+		for (int i = 0; i < FIELD_COUNT; i++) {
+			kinds[i] = NONE;
+			values[i] = null;
+			symbols[i] = -1;
+		}
+	}
+
+	/**
+	 * Record where a field's value lives. The least nested occurrence wins,
+	 * so a top-level field takes precedence over a nested one whichever
+	 * comes first; between equally nested ones the first wins.
+	 * @param depth how deep in nested objects the field is, 0 at top level
+	 */
+	void set(int field, int start, int end, byte kind, int depth) {
+		if (kinds[field] != NONE && depths[field] <= depth)
+			return;
+
+		starts[field] = start;
+		ends[field] = end;
+		kinds[field] = kind;
+		depths[field] = depth;
+	}
+
+	public boolean has(int field) {
+		return kinds[field] != NONE;
+	}
+
+	/**
+	 * Compare a field against an ASCII constant without decoding it.
+	 */
+	public boolean matches(int field, byte[] value) {
+		if (kinds[field] != STRING)
+			return false;
+
+		int start = starts[field];
+		if (ends[field] - start != value.length)
+			return false;
+
+		for (int i = 0; i < value.length; i++)
+			if (data[start + i] != value[i])
+				return false;
+
+		return true;
+	}
+
+	/**
+	 * @return the field's text, or null if it was absent
+	 */
+	public String getString(int field) {
+		if (values[field] != null)
+			return values[field];
+
+		final int start = starts[field];
+		final int len = ends[field] - start;
+
+		switch (kinds[field]) {
+		case STRING:
+			if (INTERNED[field] && symbolTable != null && len <= SymbolTable.MAX_LENGTH) {
+				int slot = symbolTable.lookup(data, start, len);
+				values[field] = symbolTable.getString(slot);
+				symbols[field] = symbolTable.getId(slot);
+				break;
+			}
+			values[field] = Utf8.toString(data, start, len);
+			break;
+		case LITERAL:
+			values[field] = Utf8.toString(data, start, len);
+			break;
+		case STRING_ESCAPED:
+			values[field] = unescape(data, start, len);
+			break;
+		default:
+			return null;
+		}
+
+		return values[field];
+	}
+
+	/**
+	 * @return id of the field's interned value, or -1 if it was absent or
+	 *         isn't interned. Equal ids mean equal values.
+	 */
+	public int getSymbol(int field) {
+		if (symbols[field] < 0)
+			getString(field);
+		return symbols[field];
+	}
+
+	/**
+	 * Parse a numeric field straight from the frame, whether it was sent as a
+	 * number or a quoted string.
+	 */
+	public long getLong(int field, long defaultValue) {
+		if (kinds[field] != STRING && kinds[field] != LITERAL)
+			return defaultValue;
+
+		int i = starts[field];
+		final int end = ends[field];
+		if (i == end)
+			return defaultValue;
+
+		boolean negative = data[i] == '-';
+		if (negative && ++i == end)
+			return defaultValue;
+
+		long value = 0;
+		for (; i < end; i++) {
+			int digit = data[i] - '0';
+			if (digit < 0 || digit > 9)
+				return defaultValue;
+			value = value * 10 + digit;
+		}
+
+		return negative ? -value : value;
+	}
+
+	public String getOperation() {
+		return getString(OPERATION);
+	}
+
+	public long getId() {
+		return getLong(ID, -1);
+	}
+
+	public long getChannelId() {
+		return getLong(CHANNEL_ID, -1);
+	}
+
+	public String getChannelUuid() {
+		return getString(CHANNEL_UUID);
+	}
+
+	public String getMessage() {
+		return getString(MESSAGE);
+	}
+
+	public String getUser() {
+		return getString(USER);
+	}
+
+	public String getUserId() {
+		return getString(USER_ID);
+	}
+
+	public String getAvatar() {
+		return getString(AVATAR);
+	}
+
+	public String getToken() {
+		return getString(TOKEN);
+	}
+
+	private static String unescape(byte[] src, int off, int len) {
+		final char[] out = new char[len];
+		final int end = off + len;
+		int o = 0;
+		int i = off;
+
+		while (i < end) {
+			int run = i;
+			while (run < end && src[run] != '\\')
+				run++;
+
+			if (run > i) {
+				o += Utf8.decode(src, i, run - i, out, o);
+				i = run;
+			}
+
+			if (i + 1 >= end)
+				break;
+
+			byte c = src[i + 1];
+			i += 2;
+			switch (c) {
+			case 'b': out[o++] = '\b'; break;
+			case 'f': out[o++] = '\f'; break;
+			case 'n': out[o++] = '\n'; break;
+			case 'r': out[o++] = '\r'; break;
+			case 't': out[o++] = '\t'; break;
+			case 'u':
+				if (i + 4 > end) {
+					i = end;
+					break;
+				}
+				out[o++] = (char) ((hex(src[i]) << 12) | (hex(src[i + 1]) << 8)
+						| (hex(src[i + 2]) << 4) | hex(src[i + 3]));
+				i += 4;
+				break;
+			default:
+				out[o++] = (char) c;
+			}
+		}
+
+		return new String(out, 0, o);
+	}
+
+	private static int hex(byte b) {
+		if (b >= '0' && b <= '9')
+			return b - '0';
+		if (b >= 'a' && b <= 'f')
+			return b - 'a' + 10;
+		if (b >= 'A' && b <= 'F')
+			return b - 'A' + 10;
+		return 0;
+	}
+}
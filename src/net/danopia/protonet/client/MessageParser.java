@@ -0,0 +1,223 @@
+/**
+ *
+ */
+package net.danopia.protonet.client;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Single pass pull parser for realtime frames. Walks the JSON once, records
+ * where the fields {@link Message} knows about are and skips everything else,
+ * without building a tree or any intermediate Strings.
+ *
+ * Not thread safe; keep one per reading thread and reuse it.
+ */
+public class MessageParser {
+	private static final int MAX_DEPTH = 16;
+
+	/* distinct users, avatars and channels we expect to be talking with */
+	private static final int SYMBOLS = 512;
+
+	/* thrown for malformed input; preallocated since it is control flow */
+	private static final class Malformed extends Exception {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		public synchronized Throwable fillInStackTrace() {
+			return this;
+		}
+	}
+
+	private static final Malformed MALFORMED = new Malformed();
+
+	private byte[] data;
+	private int pos;
+	private int end;
+	private boolean escaped;
+
+	private Message message;
+
+	private final SymbolTable symbols = new SymbolTable(SYMBOLS);
+
+	/**
+	 * Parse the remaining bytes of {@code frame} into {@code into}. The frame
+	 * must be backed by an accessible array.
+	 * @return false if the frame is not a JSON object
+	 */
+	public boolean parse(ByteBuffer frame, Message into) {
+		return parse(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining(), into);
+	}
+
+	public boolean parse(byte[] data, int offset, int length, Message into) {
+		this.data = data;
+		this.pos = offset;
+		this.end = offset + length;
+		this.message = into;
+
+		into.reset(data, symbols);
+
+		try {
+			skipWhitespace();
+			if (next() != '{')
+				return false;
+			parseObject(0);
+			return true;
+		} catch (Malformed e) {
+			return false;
+		} finally {
+			this.data = null;
+			this.message = null;
+		}
+	}
+
+	private byte next() throws Malformed {
+		if (pos >= end)
+			throw MALFORMED;
+		return data[pos++];
+	}
+
+	private byte peek() throws Malformed {
+		if (pos >= end)
+			throw MALFORMED;
+		return data[pos];
+	}
+
+	private void skipWhitespace() {
+		while (pos < end) {
+			byte b = data[pos];
+			if (b != ' ' && b != '\t' && b != '\n' && b != '\r')
+				return;
+			pos++;
+		}
+	}
+
+	/* called just after the opening '{' */
+	private void parseObject(int depth) throws Malformed {
+		skipWhitespace();
+		if (peek() == '}') {
+			pos++;
+			return;
+		}
+
+		while (true) {
+			skipWhitespace();
+			if (next() != '"')
+				throw MALFORMED;
+
+			int keyStart = pos;
+			int keyEnd = scanString();
+			int field = escaped ? -1 : lookupKey(keyStart, keyEnd);
+
+			skipWhitespace();
+			if (next() != ':')
+				throw MALFORMED;
+			skipWhitespace();
+
+			parseValue(field, depth);
+
+			skipWhitespace();
+			byte b = next();
+			if (b == '}')
+				return;
+			if (b != ',')
+				throw MALFORMED;
+		}
+	}
+
+	/* called just after the opening '[' */
+	private void parseArray(int depth) throws Malformed {
+		skipWhitespace();
+		if (peek() == ']') {
+			pos++;
+			return;
+		}
+
+		while (true) {
+			skipWhitespace();
+			parseValue(-1, depth);
+
+			skipWhitespace();
+			byte b = next();
+			if (b == ']')
+				return;
+			if (b != ',')
+				throw MALFORMED;
+		}
+	}
+
+	private void parseValue(int field, int depth) throws Malformed {
+		byte b = peek();
+
+		if (b == '"') {
+			pos++;
+			int start = pos;
+			int stop = scanString();
+			if (field >= 0)
+				message.set(field, start, stop, escaped ? Message.STRING_ESCAPED : Message.STRING, depth);
+		} else if (b == '{' || b == '[') {
+			if (depth >= MAX_DEPTH)
+				throw MALFORMED;
+			pos++;
+			if (b == '{')
+				parseObject(depth + 1);
+			else
+				parseArray(depth + 1);
+		} else {
+			int start = pos;
+			while (pos < end) {
+				b = data[pos];
+				if (b == ',' || b == '}' || b == ']' || b == ' ' || b == '\t' || b == '\n' || b == '\r')
+					break;
+				pos++;
+			}
+
+			if (pos == start)
+				throw MALFORMED;
+
+			// null means absent as far as callers are concerned
+			if (field >= 0 && !(pos - start == 4 && data[start] == 'n'))
+				message.set(field, start, pos, Message.LITERAL, depth);
+		}
+	}
+
+	/**
+	 * Skip to the closing quote of a string whose opening quote has been
+	 * consumed.
+	 * @return index of the closing quote
+	 */
+	private int scanString() throws Malformed {
+		escaped = false;
+
+		while (pos < end) {
+			byte b = data[pos];
+			if (b == '"')
+				return pos++;
+			if (b == '\\') {
+				escaped = true;
+				pos += 2;
+			} else {
+				pos++;
+			}
+		}
+
+		throw MALFORMED;
+	}
+
+	private int lookupKey(int start, int stop) {
+		final int len = stop - start;
+		final byte[][] keys = Message.KEYS;
+
+		outer:
+		for (int k = 0; k < keys.length; k++) {
+			byte[] key = keys[k];
+			if (key.length != len)
+				continue;
+			for (int i = 0; i < len; i++)
+				if (data[start + i] != key[i])
+					continue outer;
+			return Message.KEY_FIELDS[k];
+		}
+
+		return -1;
+	}
+}
@@ -0,0 +1,273 @@
+/**
+ *
+ */
+package net.danopia.protonet.client;
+
+import java.nio.ByteBuffer;
+import java.util.Collection;
+
+import net.danopia.protonet.util.BufferPool;
+
+/**
+ * Encodes outbound realtime operations straight into pooled buffers: constant
+ * parts of each operation are pre-encoded, strings are escaped and UTF-8
+ * encoded in place, and the terminating NUL is appended. Each call returns a
+ * flipped buffer ready to hand to the transport, which gives it back to the
+ * pool once it has been sent.
+ *
+ * Not thread safe.
+ */
+public class MessageWriter {
+	private static final byte[] AUTHENTICATE_HEAD = Message.ascii("{\"operation\":\"authenticate\",\"payload\":{\"user_id\":");
+	private static final byte[] AUTHENTICATE_TOKEN = Message.ascii(",\"type\":\"api\",\"token\":");
+	private static final byte[] AUTHENTICATE_TAIL = Message.ascii("}}");
+
+	private static final byte[] TWEET_HEAD = Message.ascii("{\"operation\":\"tweet\",\"channel_id\":");
+	private static final byte[] TWEET_MESSAGE = Message.ascii(",\"message\":");
+	private static final byte[] TWEET_TAIL = Message.ascii(",\"text_extension\":\"\"}");
+
+	private static final byte[] SUBSCRIBE_HEAD = Message.ascii("{\"operation\":\"subscribe\",\"channel_uuids\":[");
+	private static final byte[] UNSUBSCRIBE_HEAD = Message.ascii("{\"operation\":\"unsubscribe\",\"channel_uuids\":[");
+	private static final byte[] CHANNELS_TAIL = Message.ascii("]}");
+
+	private static final byte[] SYNC_HEAD = Message.ascii("{\"operation\":\"sync\",\"last_ids\":{");
+	private static final byte[] SYNC_TAIL = Message.ascii("}}");
+
+	private static final byte[] PING_HEAD = Message.ascii("{\"operation\":\"ping\",\"id\":");
+	private static final byte[] PING_TAIL = Message.ascii("}");
+
+	private static final byte[] HEX = Message.ascii("0123456789abcdef");
+
+	/* worst case for one char: \\u00XX */
+	private static final int MAX_CHAR_BYTES = 6;
+
+	private final BufferPool pool;
+
+	private ByteBuffer out;
+
+	public MessageWriter(BufferPool pool) {
+		this.pool = pool;
+	}
+
+	public ByteBuffer authenticate(String userId, String token) {
+		begin();
+		put(AUTHENTICATE_HEAD);
+		putId(userId);
+		put(AUTHENTICATE_TOKEN);
+		putString(token);
+		put(AUTHENTICATE_TAIL);
+		return finish();
+	}
+
+	public ByteBuffer tweet(long channelId, CharSequence message) {
+		begin();
+		put(TWEET_HEAD);
+		putLong(channelId);
+		put(TWEET_MESSAGE);
+		putString(message);
+		put(TWEET_TAIL);
+		return finish();
+	}
+
+	/**
+	 * Subscribe to several channels in one operation.
+	 */
+	public ByteBuffer subscribe(Collection<String> uuids) {
+		return channels(SUBSCRIBE_HEAD, uuids);
+	}
+
+	/**
+	 * Unsubscribe from several channels in one operation.
+	 */
+	public ByteBuffer unsubscribe(Collection<String> uuids) {
+		return channels(UNSUBSCRIBE_HEAD, uuids);
+	}
+
+	private ByteBuffer channels(byte[] head, Collection<String> uuids) {
+		begin();
+		put(head);
+		boolean first = true;
+		for (String uuid : uuids) {
+			if (!first) {
+				ensure(1);
+				out.put((byte) ',');
+			}
+			putString(uuid);
+			first = false;
+		}
+		put(CHANNELS_TAIL);
+		return finish();
+	}
+
+	/**
+	 * Ask for the messages each channel missed while we were away. Not every
+	 * node is known to implement this; callers must cope with no answer.
+	 * @param uuids channel uuids
+	 * @param lastIds id of the newest message we have for the channel at the
+	 *        same index
+	 */
+	public ByteBuffer sync(String[] uuids, long[] lastIds, int count) {
+		begin();
+		put(SYNC_HEAD);
+		for (int i = 0; i < count; i++) {
+			if (i > 0) {
+				ensure(1);
+				out.put((byte) ',');
+			}
+			putString(uuids[i]);
+			ensure(1);
+			out.put((byte) ':');
+			putLong(lastIds[i]);
+		}
+		put(SYNC_TAIL);
+		return finish();
+	}
+
+	/**
+	 * Heartbeat; the node answers with a "pong" carrying the same id.
+	 */
+	public ByteBuffer ping(long id) {
+		begin();
+		put(PING_HEAD);
+		putLong(id);
+		put(PING_TAIL);
+		return finish();
+	}
+
+	private void begin() {
+		out = pool.acquire();
+	}
+
+	private ByteBuffer finish() {
+		ensure(1);
+		out.put((byte) 0);
+		out.flip();
+
+		ByteBuffer result = out;
+		out = null;
+		return result;
+	}
+
+	/* oversized operations spill into a private buffer the pool won't take back */
+	private void ensure(int needed) {
+		if (out.remaining() >= needed)
+			return;
+
+		ByteBuffer bigger = ByteBuffer.allocate(Math.max(out.capacity() * 2, out.position() + needed));
+		out.flip();
+		bigger.put(out);
+		pool.release(out);
+		out = bigger;
+	}
+
+	private void put(byte[] fragment) {
+		ensure(fragment.length);
+		out.put(fragment);
+	}
+
+	private void putLong(long value) {
+		ensure(20);
+
+		// count down from a non-positive value; Long.MIN_VALUE has no positive
+		if (value < 0)
+			out.put((byte) '-');
+		else
+			value = -value;
+
+		final int start = out.position();
+		do {
+			out.put((byte) ('0' - (value % 10)));
+			value /= 10;
+		} while (value < 0);
+
+		// digits went in backwards
+		final byte[] array = out.array();
+		for (int i = out.arrayOffset() + start, j = out.arrayOffset() + out.position() - 1; i < j; i++, j--) {
+			byte t = array[i];
+			array[i] = array[j];
+			array[j] = t;
+		}
+	}
+
+	/* user ids come back from login as text; keep them numeric when they are */
+	private void putId(String id) {
+		if (id == null || id.length() == 0) {
+			putString(id);
+			return;
+		}
+
+		for (int i = 0; i < id.length(); i++) {
+			char c = id.charAt(i);
+			if (c < '0' || c > '9') {
+				putString(id);
+				return;
+			}
+		}
+
+		ensure(id.length());
+		for (int i = 0; i < id.length(); i++)
+			out.put((byte) id.charAt(i));
+	}
+
+	private void putString(CharSequence s) {
+		if (s == null) {
+			ensure(4);
+			out.put((byte) 'n').put((byte) 'u').put((byte) 'l').put((byte) 'l');
+			return;
+		}
+
+		ensure(2);
+		out.put((byte) '"');
+
+		final int len = s.length();
+		for (int i = 0; i < len; i++) {
+			ensure(MAX_CHAR_BYTES);
+
+			char c = s.charAt(i);
+			if (c < 0x80) {
+				switch (c) {
+				case '"':
+				case '\\':
+					out.put((byte) '\\').put((byte) c);
+					break;
+				case '\n':
+					out.put((byte) '\\').put((byte) 'n');
+					break;
+				case '\r':
+					out.put((byte) '\\').put((byte) 'r');
+					break;
+				case '\t':
+					out.put((byte) '\\').put((byte) 't');
+					break;
+				default:
+					if (c < 0x20) {
+						out.put((byte) '\\').put((byte) 'u').put((byte) '0').put((byte) '0')
+							.put(HEX[c >> 4]).put(HEX[c & 0xf]);
+					} else {
+						out.put((byte) c);
+					}
+				}
+			} else if (c < 0x800) {
+				out.put((byte) (0xc0 | (c >> 6)));
+				out.put((byte) (0x80 | (c & 0x3f)));
+			} else if (Character.isHighSurrogate(c) && i + 1 < len
+					&& Character.isLowSurrogate(s.charAt(i + 1))) {
+				int cp = Character.toCodePoint(c, s.charAt(++i));
+				out.put((byte) (0xf0 | (cp >> 18)));
+				out.put((byte) (0x80 | ((cp >> 12) & 0x3f)));
+				out.put((byte) (0x80 | ((cp >> 6) & 0x3f)));
+				out.put((byte) (0x80 | (cp & 0x3f)));
+			} else {
+				// unpaired surrogate
+				if (c >= 0xd800 && c <= 0xdfff)
+					c = '\ufffd';
+				out.put((byte) (0xe0 | (c >> 12)));
+				out.put((byte) (0x80 | ((c >> 6) & 0x3f)));
+				out.put((byte) (0x80 | (c & 0x3f)));
+			}
+		}
+
+		ensure(1);
+		out.put((byte) '"');
+	}
+}
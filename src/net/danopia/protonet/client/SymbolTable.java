@@ -0,0 +1,113 @@
+/**
+ *
+ */
+package net.danopia.protonet.client;
+
+import net.danopia.protonet.util.Utf8;
+
+/**
+ * Bounded interning table for values that repeat in nearly every frame:
+ * user names and ids, avatars, channel uuids, operations. Values are looked
+ * up by an FNV-1a hash of their raw UTF-8 bytes, so one that is already known
+ * comes back as the same String instance without decoding anything, and
+ * compares with == in the maps it is used as a key of.
+ *
+ * Each value also gets a small int id. Ids are never reused, so equal ids
+ * always mean equal values; a value evicted and seen again gets a new one.
+ *
+ * The table is set-associative with a fixed number of slots; a full set
+ * replaces its entries round-robin. Not thread safe, like the
+ * {@link MessageParser} that owns it.
+ */
+public class SymbolTable {
+	private static final int WAYS = 4;
+
+	/* longer values are rarely repeated and not worth the copy */
+	static final int MAX_LENGTH = 128;
+
+	private static final int FNV_OFFSET = 0x811c9dc5;
+	private static final int FNV_PRIME = 0x01000193;
+
+	private final int setMask;
+
+	private final int[] hashes;
+	private final byte[][] keys;
+	private final String[] strings;
+	private final int[] ids;
+	private final byte[] victims;
+
+	private int nextId = 0;
+
+	/**
+	 * @param capacity most values to keep, rounded up to a power of two
+	 */
+	public SymbolTable(int capacity) {
+		int sets = 1;
+		while (sets * WAYS < capacity)
+			sets <<= 1;
+
+		setMask = sets - 1;
+		hashes = new int[sets * WAYS];
+		keys = new byte[sets * WAYS][];
+		strings = new String[sets * WAYS];
+		ids = new int[sets * WAYS];
+		victims = new byte[sets];
+	}
+
+	/**
+	 * Find or add the value with these UTF-8 bytes.
+	 * @return its slot, for {@link #getString(int)} and {@link #getId(int)};
+	 *         only good until the next lookup
+	 */
+	public int lookup(byte[] data, int start, int length) {
+		int hash = FNV_OFFSET;
+		for (int i = start; i < start + length; i++)
+			hash = (hash ^ (data[i] & 0xff)) * FNV_PRIME;
+
+		final int set = (hash ^ (hash >>> 16)) & setMask;
+		final int first = set * WAYS;
+
+		int empty = -1;
+		for (int slot = first; slot < first + WAYS; slot++) {
+			byte[] key = keys[slot];
+			if (key == null) {
+				if (empty < 0)
+					empty = slot;
+			} else if (hashes[slot] == hash && equals(key, data, start, length)) {
+				return slot;
+			}
+		}
+
+		int slot = empty;
+		if (slot < 0) {
+			slot = first + victims[set];
+			victims[set] = (byte) ((victims[set] + 1) % WAYS);
+		}
+
+		byte[] key = new byte[length];
+		System.arraycopy(data, start, key, 0, length);
+
+		hashes[slot] = hash;
+		keys[slot] = key;
+		strings[slot] = Utf8.toString(data, start, length);
+		ids[slot] = nextId++;
+		return slot;
+	}
+
+	public String getString(int slot) {
+		return strings[slot];
+	}
+
+	public int getId(int slot) {
+		return ids[slot];
+	}
+
+	private static boolean equals(byte[] key, byte[] data, int start, int length) {
+		if (key.length != length)
+			return false;
+		for (int i = 0; i < length; i++)
+			if (key[i] != data[start + i])
+				return false;
+		return true;
+	}
+}
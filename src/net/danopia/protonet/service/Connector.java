@@ -0,0 +1,261 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.danopia.protonet.service;
+
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import android.util.Log;
+
+/**
+ * Races connection attempts to every address of a host ("happy eyeballs").
+ * Addresses are ordered IPv6 first and alternated between families; a new
+ * attempt starts every {@link #ATTEMPT_DELAY} milliseconds, or at once when
+ * the previous one fails. The first socket to connect wins and the others
+ * are closed, so a broken IPv6 route costs a quarter of a second instead of
+ * a full TCP timeout.
+ *
+ * Everything except {@link #cancel()} must be called on the selector thread,
+ * and the callback is invoked there too.
+ */
+public class Connector {
+	private static final String TAG = "ConnectBot.Connector";
+
+	public static final long ATTEMPT_DELAY = 250;
+
+	public interface Callback {
+		/**
+		 * @param channel connected and non-blocking; it may still be
+		 *        registered with the loop with no interest set, so register
+		 *        it again to take it over
+		 */
+		public void onConnected(SocketChannel channel);
+
+		/**
+		 * Every address failed.
+		 * @param e the last failure
+		 */
+		public void onFailed(IOException e);
+	}
+
+	private final SelectorLoop loop;
+	private final InetAddress[] addresses;
+	private final int port;
+	private final Callback callback;
+
+	private final List<Attempt> attempts = new LinkedList<Attempt>();
+
+	private int next = 0;
+	private SelectorLoop.Timer nextTimer;
+	private IOException lastError;
+
+	private volatile boolean done = false;
+
+	private class Attempt implements SocketHandler {
+		final SocketChannel channel;
+
+		Attempt(SocketChannel channel) {
+			this.channel = channel;
+		}
+
+		public void onConnectable() throws IOException {
+			if (channel.finishConnect())
+				won(this);
+		}
+
+		public void onReadable() throws IOException {
+		}
+
+		public void onWritable() throws IOException {
+		}
+
+		public void onError(IOException e) {
+			failed(this, e);
+		}
+	}
+
+	public Connector(SelectorLoop loop, InetAddress[] addresses, int port, Callback callback) {
+		this.loop = loop;
+		this.addresses = order(addresses);
+		this.port = port;
+		this.callback = callback;
+	}
+
+	/**
+	 * Sort addresses IPv6 first, then alternate families, keeping the
+	 * resolver's order within each family.
+	 */
+	public static InetAddress[] order(InetAddress[] addresses) {
+		List<InetAddress> v6 = new ArrayList<InetAddress>();
+		List<InetAddress> v4 = new ArrayList<InetAddress>();
+
+		for (InetAddress address : addresses) {
+			if (address instanceof Inet6Address)
+				v6.add(address);
+			else
+				v4.add(address);
+		}
+
+		InetAddress[] ordered = new InetAddress[addresses.length];
+		int i = 0, a = 0, b = 0;
+		while (a < v6.size() || b < v4.size()) {
+			if (a < v6.size())
+				ordered[i++] = v6.get(a++);
+			if (b < v4.size())
+				ordered[i++] = v4.get(b++);
+		}
+		return ordered;
+	}
+
+	public void start() {
+		if (addresses.length == 0) {
+			finishFailed(new IOException("No addresses to connect to"));
+			return;
+		}
+
+		startNext();
+	}
+
+	/**
+	 * Abandon every attempt. Safe to call from any thread.
+	 */
+	public void cancel() {
+		if (done)
+			return;
+
+		loop.post(new Runnable() {
+			public void run() {
+				if (done)
+					return;
+				done = true;
+				closeAll(null);
+			}
+		});
+	}
+
+	private void startNext() {
+		if (nextTimer != null) {
+			nextTimer.cancel();
+			nextTimer = null;
+		}
+
+		while (!done && next < addresses.length) {
+			InetSocketAddress address = new InetSocketAddress(addresses[next++], port);
+
+			SocketChannel channel = null;
+			try {
+				channel = SocketChannel.open();
+				channel.configureBlocking(false);
+
+				Attempt attempt = new Attempt(channel);
+				attempts.add(attempt);
+
+				if (channel.connect(address)) {
+					won(attempt);
+					return;
+				}
+
+				loop.register(channel, SelectionKey.OP_CONNECT, attempt);
+			} catch (IOException e) {
+				// e.g. no route for this family at all; try the next one now
+				Log.d(TAG, "Could not start connecting to " + address, e);
+				lastError = e;
+				if (channel != null) {
+					attempts.remove(attempts.size() - 1);
+					close(channel);
+				}
+				continue;
+			}
+
+			if (next < addresses.length) {
+				nextTimer = loop.schedule(new Runnable() {
+					public void run() {
+						nextTimer = null;
+						startNext();
+					}
+				}, ATTEMPT_DELAY);
+			}
+			return;
+		}
+
+		if (!done && attempts.isEmpty())
+			finishFailed(lastError);
+	}
+
+	private void won(Attempt winner) {
+		if (done)
+			return;
+		done = true;
+
+		loop.setInterest(winner.channel, SelectionKey.OP_CONNECT, false);
+		closeAll(winner);
+
+		callback.onConnected(winner.channel);
+	}
+
+	private void failed(Attempt attempt, IOException e) {
+		if (done)
+			return;
+
+		Log.d(TAG, "Connect attempt failed", e);
+		lastError = e;
+
+		attempts.remove(attempt);
+		close(attempt.channel);
+
+		// don't wait out the delay for a connection that already failed
+		startNext();
+	}
+
+	private void finishFailed(IOException e) {
+		done = true;
+		closeAll(null);
+
+		if (e == null)
+			e = new IOException("Could not connect");
+		callback.onFailed(e);
+	}
+
+	private void closeAll(Attempt keep) {
+		if (nextTimer != null) {
+			nextTimer.cancel();
+			nextTimer = null;
+		}
+
+		for (Attempt attempt : attempts) {
+			if (attempt != keep)
+				close(attempt.channel);
+		}
+		attempts.clear();
+	}
+
+	private static void close(SocketChannel channel) {
+		try {
+			channel.close();
+		} catch (IOException e) {
+			Log.d(TAG, "Error closing connect attempt", e);
+		}
+	}
+}
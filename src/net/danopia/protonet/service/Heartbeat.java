@@ -0,0 +1,158 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.danopia.protonet.service;
+
+import net.danopia.protonet.client.Message;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Application-level keepalive for the realtime socket. Every interval a ping
+ * goes out; any frame coming back counts as a sign of life, and the matching
+ * pong gives a round-trip sample that feeds a smoothed RTT (as in RFC 6298).
+ * When {@link #MAX_MISSED} intervals pass without hearing anything the link
+ * is declared dead, so a half-open connection is noticed long before the OS
+ * would give up on it.
+ *
+ * Nothing guarantees the node answers pings. Until the first pong arrives,
+ * silence is not counted: a quiet channel on a node that ignores pings would
+ * otherwise look dead. Such links are only watched by TCP keepalive.
+ *
+ * Runs entirely on the selector thread.
+ */
+public class Heartbeat implements Runnable {
+	private static final String TAG = "ConnectBot.Heartbeat";
+
+	public static final int MAX_MISSED = 3;
+
+	private static final byte[] PONG = Message.ascii("pong");
+
+	public interface Listener {
+		/**
+		 * Send a ping with this id.
+		 */
+		public void sendPing(long id);
+
+		/**
+		 * Nothing was heard for {@link #MAX_MISSED} intervals.
+		 */
+		public void onDeadLink();
+	}
+
+	private final SelectorLoop loop;
+	private final Listener listener;
+	private final long interval;
+
+	private SelectorLoop.Timer timer;
+
+	private boolean heard = true;
+	private int missed = 0;
+
+	/* whether the node has ever answered one of our pings */
+	private boolean answering = false;
+
+	private long pingId = 0;
+	private long pingSent = 0;
+	private boolean pingOutstanding = false;
+
+	/* milliseconds, -1 until the first sample */
+	private volatile long srtt = -1;
+	private volatile long rttvar = 0;
+
+	public Heartbeat(SelectorLoop loop, Listener listener, long interval) {
+		this.loop = loop;
+		this.listener = listener;
+		this.interval = interval;
+	}
+
+	public void start() {
+		heard = true;
+		missed = 0;
+		answering = false;
+		timer = loop.schedule(this, interval);
+	}
+
+	public void stop() {
+		if (timer != null)
+			timer.cancel();
+	}
+
+	/**
+	 * Call for every frame received.
+	 * @param message the parsed frame, or null if it could not be parsed
+	 */
+	public void onFrame(Message message) {
+		heard = true;
+
+		if (message == null || !pingOutstanding)
+			return;
+
+		if ((message.matches(Message.OPERATION, PONG) || message.matches(Message.TRIGGER, PONG))
+				&& message.getLong(Message.ID, -1) == pingId) {
+			pingOutstanding = false;
+			answering = true;
+			sample(SystemClock.uptimeMillis() - pingSent);
+		}
+	}
+
+	public void run() {
+		if (timer == null || timer.isCancelled())
+			return;
+
+		if (heard || !answering) {
+			missed = 0;
+		} else if (++missed >= MAX_MISSED) {
+			Log.d(TAG, String.format("No response for %d heartbeats, giving up", missed));
+			listener.onDeadLink();
+			return;
+		}
+		heard = false;
+
+		// only the newest ping is timed; a late pong for an older one is ignored
+		pingId++;
+		pingSent = SystemClock.uptimeMillis();
+		pingOutstanding = true;
+		listener.sendPing(pingId);
+
+		timer = loop.schedule(this, interval);
+	}
+
+	private void sample(long rtt) {
+		if (srtt < 0) {
+			srtt = rtt;
+			rttvar = rtt / 2;
+		} else {
+			rttvar = (3 * rttvar + Math.abs(srtt - rtt)) / 4;
+			srtt = (7 * srtt + rtt) / 8;
+		}
+	}
+
+	/**
+	 * @return smoothed round-trip time in milliseconds, or -1 if unknown
+	 */
+	public long getSmoothedRtt() {
+		return srtt;
+	}
+
+	/**
+	 * @return round-trip time variation in milliseconds
+	 */
+	public long getRttVariation() {
+		return rttvar;
+	}
+}
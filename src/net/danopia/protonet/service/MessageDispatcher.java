@@ -0,0 +1,267 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.danopia.protonet.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import net.danopia.protonet.bean.ChannelBean;
+import net.danopia.protonet.client.Message;
+import net.danopia.protonet.util.ChannelLog;
+import net.danopia.protonet.util.SerialExecutor;
+
+import android.util.Log;
+
+/**
+ * Routes parsed messages to the {@link MessageStore} of their channel.
+ * Channels are known by uuid from the host database, while the node may
+ * only send a numeric channel_id; the id is learned from the first message
+ * that carries both, after which either one finds the store with a single
+ * hash lookup.
+ * <p>
+ * {@link #find(Message)} runs for every frame, so it reads immutable
+ * snapshots of both tables without taking the lock or boxing the id; the
+ * snapshots are replaced under the lock when a channel is added, dropped
+ * or learned, which is rare.
+ */
+public class MessageDispatcher {
+	private static final String TAG = "ConnectBot.MessageDispatcher";
+
+	private final Map<String, MessageStore> byUuid = new HashMap<String, MessageStore>();
+
+	/* what find() reads; copies of byUuid and the learned ids */
+	private volatile Map<String, MessageStore> uuidRoutes = Collections.emptyMap();
+	private volatile IdTable idRoutes = IdTable.EMPTY;
+
+	private int capacity;
+
+	private final File historyDir;
+	private final Executor executor;
+	private final Executor writer;
+
+	/**
+	 * @param capacity lines of history to keep in memory per channel
+	 * @param historyDir where to keep each channel's {@link ChannelLog}, or
+	 *        null to keep history in memory only
+	 * @param executor opens, reads and writes the history
+	 * @param writer runs tasks on the thread that adds messages, to hand
+	 *        loaded history to the stores
+	 */
+	public MessageDispatcher(int capacity, File historyDir, Executor executor, Executor writer) {
+		this.capacity = capacity;
+		this.historyDir = historyDir;
+		this.executor = executor;
+		this.writer = writer;
+	}
+
+	/**
+	 * Start keeping messages for this channel. Registering a channel again
+	 * keeps its existing store. Returns right away; a store with history on
+	 * disk fills in once a worker has read it.
+	 */
+	public synchronized MessageStore register(ChannelBean channel) {
+		final String uuid = channel.getUuid();
+		if (uuid == null)
+			return null;
+
+		MessageStore store = byUuid.get(uuid);
+		if (store == null) {
+			store = new MessageStore(channel, capacity, (historyDir != null) ? executor : null);
+			byUuid.put(uuid, store);
+			publishUuids();
+
+			if (historyDir != null) {
+				final MessageStore loading = store;
+				final int lines = capacity;
+				executor.execute(new Runnable() {
+					public void run() {
+						loading.load(openLog(uuid), lines, writer);
+						loading.indexHistory(executor);
+					}
+				});
+			}
+		}
+		return store;
+	}
+
+	private ChannelLog openLog(String uuid) {
+		if (historyDir == null)
+			return null;
+
+		File dir = new File(historyDir, uuid.replaceAll("[^A-Za-z0-9_-]", "_"));
+		try {
+			return new ChannelLog(dir, new SerialExecutor(executor));
+		} catch (IOException e) {
+			Log.e(TAG, "Could not open history in " + dir + ", keeping it in memory only", e);
+			return null;
+		}
+	}
+
+	/**
+	 * Write out and close every channel's history.
+	 */
+	public synchronized void close() {
+		for (MessageStore store : byUuid.values())
+			store.close();
+	}
+
+	public synchronized void setCapacity(int capacity) {
+		this.capacity = capacity;
+		for (MessageStore store : byUuid.values())
+			store.setCapacity(capacity);
+	}
+
+	public synchronized void unregister(ChannelBean channel) {
+		MessageStore store = byUuid.remove(channel.getUuid());
+		if (store == null)
+			return;
+
+		publishUuids();
+		idRoutes = idRoutes.without(store);
+		store.close();
+	}
+
+	/* called with the lock held */
+	private void publishUuids() {
+		uuidRoutes = Collections.unmodifiableMap(new HashMap<String, MessageStore>(byUuid));
+	}
+
+	/**
+	 * @return the store for this channel, or null if it isn't registered
+	 */
+	public synchronized MessageStore get(ChannelBean channel) {
+		if (channel.getUuid() == null)
+			return null;
+		return byUuid.get(channel.getUuid());
+	}
+
+	/**
+	 * @return the store the message belongs in, or null if its channel is
+	 *         unknown
+	 */
+	public MessageStore find(Message message) {
+		long channelId = message.getLong(Message.CHANNEL_ID, -1);
+
+		if (channelId >= 0) {
+			MessageStore store = idRoutes.get(channelId);
+			if (store != null)
+				return store;
+		}
+
+		if (!message.has(Message.CHANNEL_UUID))
+			return null;
+
+		MessageStore store = uuidRoutes.get(message.getChannelUuid());
+		if (store != null && channelId >= 0)
+			learn(channelId, store);
+		return store;
+	}
+
+	private synchronized void learn(long channelId, MessageStore store) {
+		// skip a store that was dropped since find() looked it up
+		if (byUuid.get(store.getChannel().getUuid()) == store)
+			idRoutes = idRoutes.with(channelId, store);
+	}
+
+	/**
+	 * Immutable map from channel id to store, open addressed over primitive
+	 * arrays so a lookup neither allocates nor locks.
+	 */
+	private static final class IdTable {
+		static final IdTable EMPTY = new IdTable(new long[0], new MessageStore[0]);
+
+		/* ids[i] is -1 where the slot is free; never full */
+		private final long[] ids;
+		private final MessageStore[] stores;
+		private final int mask;
+
+		private IdTable(long[] ids, MessageStore[] stores) {
+			this.ids = ids;
+			this.stores = stores;
+			this.mask = ids.length - 1;
+		}
+
+		private static int slot(long id, int mask) {
+			int h = (int) (id ^ (id >>> 32)) * 0x9E3779B9;
+			return (h ^ (h >>> 16)) & mask;
+		}
+
+		MessageStore get(long id) {
+			if (ids.length == 0)
+				return null;
+
+			for (int i = slot(id, mask); ids[i] != -1; i = (i + 1) & mask) {
+				if (ids[i] == id)
+					return stores[i];
+			}
+			return null;
+		}
+
+		private int size() {
+			int count = 0;
+			for (MessageStore store : stores) {
+				if (store != null)
+					count++;
+			}
+			return count;
+		}
+
+		/* a copy without dropped's ids, and with id mapped to store unless store is null */
+		private IdTable copy(long id, MessageStore store, MessageStore dropped) {
+			int length = 4;
+			while (length < (size() + 1) * 2)
+				length <<= 1;
+
+			long[] newIds = new long[length];
+			MessageStore[] newStores = new MessageStore[length];
+			Arrays.fill(newIds, -1);
+
+			for (int i = 0; i < ids.length; i++) {
+				if (ids[i] != -1 && ids[i] != id && stores[i] != dropped)
+					put(newIds, newStores, ids[i], stores[i]);
+			}
+			if (store != null)
+				put(newIds, newStores, id, store);
+			return new IdTable(newIds, newStores);
+		}
+
+		private static void put(long[] ids, MessageStore[] stores, long id, MessageStore store) {
+			int mask = ids.length - 1;
+			int i = slot(id, mask);
+			while (ids[i] != -1)
+				i = (i + 1) & mask;
+			ids[i] = id;
+			stores[i] = store;
+		}
+
+		IdTable with(long id, MessageStore store) {
+			if (get(id) == store)
+				return this;
+			return copy(id, store, null);
+		}
+
+		IdTable without(MessageStore store) {
+			return copy(-1, null, store);
+		}
+	}
+}
@@ -0,0 +1,404 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.danopia.protonet.service;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import net.danopia.protonet.bean.ChannelBean;
+import net.danopia.protonet.util.ChannelLog;
+import net.danopia.protonet.util.DuplicateFilter;
+import net.danopia.protonet.util.HistoryBuffer;
+import net.danopia.protonet.util.SearchIndex;
+
+import android.util.Log;
+
+/**
+ * Lines received in one channel, oldest first. The newest ones are kept in
+ * memory, bounded like the bridge's scrollback; with a {@link ChannelLog}
+ * everything is also written to disk, older lines can be paged in from there
+ * and the memory is refilled from it when the store is loaded. Appended to
+ * on the selector thread and read from the UI.
+ *
+ * A store with history on disk starts out empty and holds new lines back
+ * until {@link #load} has read the newest ones from the log on a worker,
+ * so registering a channel never waits on the disk.
+ *
+ * Every line is also added to a {@link SearchIndex} by its ordinal, which
+ * covers what is in memory, or with a log the newest {@link #SEARCH_DEPTH}
+ * lines. Those already on disk are indexed in the background by
+ * {@link #indexHistory}.
+ */
+public class MessageStore {
+	private static final String TAG = "ConnectBot.MessageStore";
+
+	/* lines read from disk at a time while indexing */
+	private static final int HISTORY_PAGE = 512;
+
+	/* lines read back from disk at a time for a view scrolled back that far */
+	private static final int PAGED_LINES = 1024;
+
+	/* how far back from the newest line search reaches on disk */
+	static final int SEARCH_DEPTH = 10000;
+
+	/* new lines between trimming the index down to SEARCH_DEPTH */
+	private static final int TRIM_INTERVAL = 1024;
+
+	/* lines paged back in from disk, oldest first; the range is what was asked for */
+	static final class Page {
+		final long from;
+		final long to;
+		final String[] lines;
+
+		Page(long from, long to, String[] lines) {
+			this.from = from;
+			this.to = to;
+			this.lines = lines;
+		}
+	}
+
+	/* a line that arrived while the history was still loading */
+	private static class Held {
+		final String line;
+		final long id;
+		final long time;
+
+		Held(String line, long id, long time) {
+			this.line = line;
+			this.id = id;
+			this.time = time;
+		}
+	}
+
+	private final ChannelBean channel;
+
+	private final HistoryBuffer lines;
+
+	private final Executor disk;
+
+	private volatile Page paged;
+	private final AtomicBoolean paging = new AtomicBoolean();
+
+	/* set once the history on disk is open, guarded by this */
+	private volatile ChannelLog log;
+	private boolean closed = false;
+
+	/* log ordinal of the line with sequence number 0 in memory */
+	private volatile long base = 0;
+
+	/* lines held back until the history is loaded, or null; writer only */
+	private List<Held> held;
+
+	private final SearchIndex index = new SearchIndex();
+
+	private final DuplicateFilter seen;
+
+	/* lines before this were on disk when we opened the log */
+	private volatile long indexFrom = 0;
+
+	/**
+	 * @param disk reads the channel's history on disk, which {@link #load}
+	 *        has to be called to open; null if there is none
+	 */
+	public MessageStore(ChannelBean channel, int capacity, Executor disk) {
+		this.channel = channel;
+		this.disk = disk;
+		lines = new HistoryBuffer(capacity);
+		seen = new DuplicateFilter(channel.getLastMessageId());
+		if (disk != null)
+			held = new ArrayList<Held>();
+	}
+
+	/**
+	 * Read the newest lines from the history on disk, then have the writer
+	 * put them in front of whatever arrived meanwhile. Blocks on I/O, so
+	 * run it on a worker.
+	 * @param log the history, or null if it couldn't be opened
+	 * @param capacity lines to read back into memory
+	 * @param writer runs tasks on the selector thread
+	 */
+	void load(final ChannelLog log, int capacity, Executor writer) {
+		final List<String> recent = new ArrayList<String>(capacity);
+		long from = 0;
+
+		if (log != null) {
+			synchronized (this) {
+				if (closed) {
+					log.close();
+					return;
+				}
+				this.log = log;
+			}
+
+			// nothing is appended until we attach, so this stays put
+			long count = log.getCount();
+			try {
+				from = log.read(Math.max(0, count - capacity), capacity, recent) - recent.size();
+			} catch (IOException e) {
+				Log.e(TAG, "Could not load history for " + channel.getNickname(), e);
+				recent.clear();
+				from = count;
+			}
+			indexFrom = count;
+		}
+
+		final long tail = from;
+		writer.execute(new Runnable() {
+			public void run() {
+				attach(log, recent, tail);
+			}
+		});
+	}
+
+	/* writer only */
+	private void attach(ChannelLog log, List<String> recent, long from) {
+		base = from;
+		for (String line : recent)
+			lines.add(line);
+
+		// pick up where we left off before the service restarted
+		long last = -1;
+		if (log != null) {
+			last = log.getLastId();
+			seen.raise(last);
+			channel.setLastMessageId(seen.getHighest());
+		}
+
+		List<Held> arrived = held;
+		held = null;
+		for (Held line : arrived) {
+			// a replay of something that was on disk already
+			if (line.id >= 0 && line.id <= last)
+				continue;
+			append(line.line, line.id, line.time);
+		}
+	}
+
+	/**
+	 * Check a message id before adding its line, so a message the node
+	 * replays is only stored once. Keeps the channel's last message id
+	 * current for the next resync. Call on the selector thread.
+	 * @return true if the message is new
+	 */
+	public boolean accept(long id) {
+		if (!seen.add(id))
+			return false;
+		channel.setLastMessageId(seen.getHighest());
+		return true;
+	}
+
+	public ChannelBean getChannel() {
+		return channel;
+	}
+
+	/**
+	 * @param id message id, or -1 if it had none
+	 */
+	public void add(CharSequence line, long id) {
+		if (held != null)
+			held.add(new Held(line.toString(), id, System.currentTimeMillis()));
+		else
+			append(line, id, System.currentTimeMillis());
+	}
+
+	private void append(CharSequence line, long id, long time) {
+		long ordinal = base + lines.getSequence();
+		lines.add(line);
+		index.add((int) ordinal, line);
+
+		ChannelLog log = this.log;
+		if (log != null && log.append(id, time, line) != ordinal) {
+			// closed, or writing failed; our ordinals no longer match the
+			// disk, so carry on in memory only
+			this.log = log = null;
+		}
+
+		if (log != null) {
+			if (ordinal % TRIM_INTERVAL == 0)
+				index.trim((int) (ordinal - SEARCH_DEPTH));
+		} else if (ordinal % lines.getCapacity() == 0) {
+			// nothing to page back in, so stop indexing what was evicted
+			index.trim((int) (base + lines.snapshot().getFirst()));
+		}
+	}
+
+	/**
+	 * Index the newest {@link #SEARCH_DEPTH} lines that were already on disk
+	 * when the store was loaded. Reads one page per task, queueing the next
+	 * behind whatever else the executor has to do, so history writes and
+	 * other channels' loads are not held up. Call after {@link #load}; new
+	 * lines are searchable meanwhile.
+	 */
+	void indexHistory(final Executor executor) {
+		final ChannelLog log = this.log;
+		final long end = indexFrom;
+		if (log == null || end == 0)
+			return;
+
+		executor.execute(new Runnable() {
+			private final SearchIndex older = new SearchIndex();
+			private final List<String> page = new ArrayList<String>(HISTORY_PAGE);
+			private long ordinal = Math.max(0, end - SEARCH_DEPTH);
+
+			public void run() {
+				synchronized (MessageStore.this) {
+					if (closed)
+						return;
+				}
+
+				page.clear();
+				final long from = ordinal;
+				try {
+					log.read(from, (int) Math.min(HISTORY_PAGE, end - from), page);
+				} catch (IOException e) {
+					Log.e(TAG, "Could not index history for " + channel.getNickname(), e);
+				}
+				for (String line : page)
+					older.add((int) ordinal++, line);
+
+				if (ordinal > from && ordinal < end)
+					executor.execute(this);
+				else
+					index.prepend(older);
+			}
+		});
+	}
+
+	/**
+	 * @param query words to find, each matched as a prefix
+	 * @param max most lines to return
+	 * @return ordinals of matching lines, newest first
+	 */
+	public long[] search(String query, int max) {
+		int[] docs = index.search(query, max);
+		long[] ordinals = new long[docs.length];
+		for (int i = 0; i < docs.length; i++)
+			ordinals[i] = docs[i];
+		return ordinals;
+	}
+
+	/**
+	 * Lines of the channel by ordinal, for a view to show: those in memory
+	 * and, with a log, every older one on disk. An older line is null until
+	 * {@link #pageIn} has read it back.
+	 */
+	public Window window() {
+		// the base is set before any line is added, so read it after them
+		HistoryBuffer.Snapshot memory = lines.snapshot();
+		return new Window(memory, base, log != null, paged);
+	}
+
+	public static final class Window {
+		private final HistoryBuffer.Snapshot memory;
+		private final long base;
+		private final boolean onDisk;
+		private final Page page;
+
+		Window(HistoryBuffer.Snapshot memory, long base, boolean onDisk, Page page) {
+			this.memory = memory;
+			this.base = base;
+			this.onDisk = onDisk;
+			this.page = page;
+		}
+
+		/**
+		 * @return ordinal of the oldest line
+		 */
+		public long getFirst() {
+			return onDisk ? 0 : base + memory.getFirst();
+		}
+
+		/**
+		 * @return ordinal one past the newest line
+		 */
+		public long getEnd() {
+			return base + memory.getEnd();
+		}
+
+		/**
+		 * @return the line, or null if it isn't in memory or paged in
+		 */
+		public String get(long ordinal) {
+			long seq = ordinal - base;
+			if (seq >= memory.getFirst() && seq < memory.getEnd()) {
+				String line = memory.get(seq);
+				if (line != null)
+					return line;
+			}
+
+			if (page != null && ordinal >= page.from && ordinal < page.from + page.lines.length)
+				return page.lines[(int) (ordinal - page.from)];
+			return null;
+		}
+	}
+
+	/**
+	 * Read the lines around this ordinal back from disk, mostly older ones
+	 * as the user is scrolling back, in place of those read last time. Does
+	 * nothing if they are already paged in or being read.
+	 * @param done run on the worker once the lines are in
+	 */
+	public void pageIn(final long ordinal, final Runnable done) {
+		final ChannelLog log = this.log;
+		final Page page = paged;
+		if (log == null || disk == null || ordinal < 0 || ordinal >= log.getWritten())
+			return;
+		if (page != null && ordinal >= page.from && ordinal < page.to)
+			return;
+		if (!paging.compareAndSet(false, true))
+			return;
+
+		disk.execute(new Runnable() {
+			public void run() {
+				long to = Math.min(log.getWritten(), ordinal + PAGED_LINES / 8 + 1);
+				List<String> out = new ArrayList<String>(PAGED_LINES);
+				long from = to;
+				try {
+					from = readBefore(log, to, PAGED_LINES, out);
+				} catch (IOException e) {
+					Log.e(TAG, "Could not page in history for " + channel.getNickname(), e);
+				}
+
+				// remember the range even if reading failed, so we don't retry every frame
+				paged = new Page(from, to, out.toArray(new String[out.size()]));
+				paging.set(false);
+				done.run();
+			}
+		});
+	}
+
+	/* read up to max lines before an ordinal; returns the ordinal of the first */
+	private static long readBefore(ChannelLog log, long before, int max, List<String> out) throws IOException {
+		long from = Math.max(0, before - max);
+		log.read(from, (int) (before - from), out);
+		return from;
+	}
+
+	void setCapacity(int capacity) {
+		lines.setCapacity(capacity);
+	}
+
+	synchronized void close() {
+		closed = true;
+		if (log != null)
+			log.close();
+	}
+}
@@ -0,0 +1,248 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.danopia.protonet.service;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.util.LinkedList;
+
+import net.danopia.protonet.util.BufferPool;
+
+/**
+ * Per-connection send queue. Small writes are copied into the tail of the
+ * current pooled segment so a burst goes out as a few large writes; the queue
+ * is flushed once a segment's worth of data is waiting or shortly after the
+ * first unflushed write, and drained with one gathering write per selector
+ * wakeup.
+ *
+ * The number of bytes waiting is bounded. When the peer stops reading,
+ * {@link #offer} blocks the calling thread for a while and then fails, instead
+ * of letting the queue grow without limit. The selector thread itself is never
+ * blocked; it fails straight away.
+ */
+public class OutboundQueue {
+	public static final int MAX_QUEUED_BYTES = 256 * 1024;
+	public static final long FLUSH_DELAY = 5;
+	public static final long OFFER_TIMEOUT = 10 * 1000;
+
+	private static final int MAX_GATHER = 16;
+
+	private final BufferPool pool;
+	private final SelectorLoop loop;
+	private final SelectableChannel channel;
+
+	/* segments ready to send, in read mode */
+	private final LinkedList<ByteBuffer> sealed = new LinkedList<ByteBuffer>();
+
+	/* segment still accepting writes, in fill mode */
+	private ByteBuffer tail = null;
+
+	private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+
+	private int queued = 0;
+	private boolean flushScheduled = false;
+	private boolean closed = false;
+
+	private final Runnable flush = new Runnable() {
+		public void run() {
+			synchronized (OutboundQueue.this) {
+				flushScheduled = false;
+			}
+			loop.setInterest(channel, SelectionKey.OP_WRITE, true);
+		}
+	};
+
+	public OutboundQueue(BufferPool pool, SelectorLoop loop, SelectableChannel channel) {
+		this.pool = pool;
+		this.loop = loop;
+		this.channel = channel;
+	}
+
+	/**
+	 * Queue a pooled buffer in read mode. The queue takes ownership and gives
+	 * it back to the pool once it has been copied or sent, or straight away
+	 * if it can't be queued.
+	 */
+	public void offer(ByteBuffer data) throws IOException {
+		final int length = data.remaining();
+
+		synchronized (this) {
+			try {
+				awaitRoom(length);
+			} catch (IOException e) {
+				pool.release(data);
+				throw e;
+			}
+
+			if (tail != null && tail.remaining() >= length) {
+				tail.put(data);
+				pool.release(data);
+			} else if (length >= pool.getBufferSize() / 2) {
+				// big enough to go out on its own; don't copy it
+				seal();
+				sealed.add(data);
+			} else {
+				seal();
+				tail = pool.acquire();
+				tail.put(data);
+				pool.release(data);
+			}
+
+			queued += length;
+			scheduleFlush();
+		}
+	}
+
+	/**
+	 * Copy raw bytes into the queue.
+	 */
+	public void offer(byte[] data, int offset, int length) throws IOException {
+		synchronized (this) {
+			awaitRoom(length);
+
+			while (length > 0) {
+				if (tail == null || !tail.hasRemaining()) {
+					seal();
+					tail = pool.acquire();
+				}
+
+				int n = Math.min(tail.remaining(), length);
+				tail.put(data, offset, n);
+				offset += n;
+				length -= n;
+				queued += n;
+			}
+
+			scheduleFlush();
+		}
+	}
+
+	private void awaitRoom(int length) throws IOException {
+		if (closed)
+			throw new IOException("Connection closed");
+
+		if (queued == 0 || queued + length <= MAX_QUEUED_BYTES)
+			return;
+
+		if (loop.inLoop())
+			throw new IOException("Send queue full");
+
+		final long deadline = System.currentTimeMillis() + OFFER_TIMEOUT;
+		while (!closed && queued > 0 && queued + length > MAX_QUEUED_BYTES) {
+			long wait = deadline - System.currentTimeMillis();
+			if (wait <= 0)
+				throw new IOException("Send queue full; peer is not reading");
+
+			try {
+				wait(wait);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while waiting to send");
+			}
+		}
+
+		if (closed)
+			throw new IOException("Connection closed");
+	}
+
+	private void seal() {
+		if (tail == null)
+			return;
+
+		if (tail.position() > 0) {
+			tail.flip();
+			sealed.add(tail);
+		} else {
+			pool.release(tail);
+		}
+
+		tail = null;
+	}
+
+	/* must hold the lock */
+	private void scheduleFlush() {
+		if (queued >= pool.getBufferSize()) {
+			loop.setInterest(channel, SelectionKey.OP_WRITE, true);
+		} else if (!flushScheduled) {
+			flushScheduled = true;
+			loop.schedule(flush, FLUSH_DELAY);
+		}
+	}
+
+	/**
+	 * Write as much as the channel will take. Called on the selector thread
+	 * when the channel is writable.
+	 * @return true when the queue is empty and write interest can be dropped
+	 */
+	public synchronized boolean drain(GatheringByteChannel out) throws IOException {
+		seal();
+
+		while (!sealed.isEmpty()) {
+			int count = 0;
+			for (ByteBuffer segment : sealed) {
+				gather[count++] = segment;
+				if (count == MAX_GATHER)
+					break;
+			}
+
+			long written = out.write(gather, 0, count);
+			queued -= (int) written;
+
+			for (int i = 0; i < count; i++)
+				gather[i] = null;
+
+			while (!sealed.isEmpty() && !sealed.getFirst().hasRemaining())
+				pool.release(sealed.removeFirst());
+
+			if (written > 0)
+				notifyAll();
+
+			if (!sealed.isEmpty())
+				return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * @return number of bytes waiting to be sent
+	 */
+	public synchronized int size() {
+		return queued;
+	}
+
+	/**
+	 * Drop everything still queued and fail any blocked writers.
+	 */
+	public synchronized void close() {
+		closed = true;
+
+		for (ByteBuffer segment : sealed)
+			pool.release(segment);
+		sealed.clear();
+
+		pool.release(tail);
+		tail = null;
+
+		queued = 0;
+		notifyAll();
+	}
+}
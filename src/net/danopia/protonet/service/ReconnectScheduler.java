@@ -0,0 +1,147 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.danopia.protonet.service;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import android.util.Log;
+
+/**
+ * Spreads reconnect attempts out over time. Each bridge gets its own
+ * exponential backoff with full jitter: the n-th consecutive retry waits a
+ * random time between zero and BASE_DELAY * 2^n, capped at MAX_DELAY. After a
+ * network flap this keeps every host from hitting its node at the same
+ * moment, and a node that keeps refusing us is retried less and less often.
+ * The backoff is reset once a connection is working again.
+ *
+ * Timers run on the {@link SelectorLoop}, so the reconnect task must hand
+ * off anything that blocks.
+ */
+public class ReconnectScheduler {
+	private static final String TAG = "ConnectBot.ReconnectScheduler";
+
+	public static final long BASE_DELAY = 1000;
+	public static final long MAX_DELAY = 5 * 60 * 1000;
+
+	/* BASE_DELAY << MAX_SHIFT is already past MAX_DELAY */
+	private static final int MAX_SHIFT = 10;
+
+	private static class Backoff {
+		int failures = 0;
+		SelectorLoop.Timer timer;
+	}
+
+	private final SelectorLoop loop;
+
+	private final Random random = new Random();
+
+	private final Map<TerminalBridge, Backoff> backoffs = new HashMap<TerminalBridge, Backoff>();
+
+	public ReconnectScheduler(SelectorLoop loop) {
+		this.loop = loop;
+	}
+
+	/**
+	 * Run the reconnect task for this bridge after its current backoff. Does
+	 * nothing if a reconnect is already scheduled.
+	 */
+	public void schedule(final TerminalBridge bridge, final Runnable reconnect) {
+		synchronized (backoffs) {
+			Backoff backoff = backoffs.get(bridge);
+			if (backoff == null) {
+				backoff = new Backoff();
+				backoffs.put(bridge, backoff);
+			}
+
+			if (backoff.timer != null && !backoff.timer.isCancelled())
+				return;
+
+			long delay = nextDelay(backoff.failures);
+			backoff.failures++;
+
+			Log.d(TAG, String.format("Reconnecting %s in %dms (attempt %d)",
+					bridge.host.getNickname(), delay, backoff.failures));
+
+			final Backoff scheduled = backoff;
+			backoff.timer = loop.schedule(new Runnable() {
+				public void run() {
+					synchronized (backoffs) {
+						scheduled.timer = null;
+					}
+					reconnect.run();
+				}
+			}, delay);
+		}
+	}
+
+	private long nextDelay(int failures) {
+		long ceiling = Math.min(MAX_DELAY, BASE_DELAY << Math.min(failures, MAX_SHIFT));
+		return (long) (random.nextDouble() * ceiling);
+	}
+
+	/**
+	 * The bridge is connected again; its next failure starts from the
+	 * shortest delay.
+	 */
+	public void reset(TerminalBridge bridge) {
+		synchronized (backoffs) {
+			Backoff backoff = backoffs.get(bridge);
+			if (backoff != null && backoff.timer == null)
+				backoffs.remove(bridge);
+		}
+	}
+
+	/**
+	 * Restart every bridge's backoff from the shortest delay, e.g. because
+	 * we are on a different network now. Pending reconnects stay scheduled.
+	 */
+	public void resetAll() {
+		synchronized (backoffs) {
+			for (Backoff backoff : backoffs.values())
+				backoff.failures = 0;
+		}
+	}
+
+	/**
+	 * Cancel any pending reconnect and forget the bridge.
+	 */
+	public void cancel(TerminalBridge bridge) {
+		synchronized (backoffs) {
+			Backoff backoff = backoffs.remove(bridge);
+			if (backoff != null && backoff.timer != null)
+				backoff.timer.cancel();
+		}
+	}
+
+	/**
+	 * Cancel every pending reconnect but keep the backoff state, for when the
+	 * network goes away entirely.
+	 */
+	public void cancelAll() {
+		synchronized (backoffs) {
+			for (Backoff backoff : backoffs.values()) {
+				if (backoff.timer != null) {
+					backoff.timer.cancel();
+					backoff.timer = null;
+				}
+			}
+		}
+	}
+}
@@ -19,109 +19,119 @@ package net.danopia.protonet.service;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.CharBuffer;
 import java.nio.charset.Charset;
-import java.nio.charset.CharsetDecoder;
-import java.nio.charset.CoderResult;
-import java.nio.charset.CodingErrorAction;
-import java.util.ArrayList;
 
+import net.danopia.protonet.client.FrameDecoder;
+import net.danopia.protonet.client.Message;
+import net.danopia.protonet.client.MessageParser;
+import net.danopia.protonet.util.HistoryBuffer;
 import android.util.Log;
 
 /**
+ * Parses frames from a {@link Transport} and feeds the messages into the
+ * store of their channel, or the bridge buffer if they don't belong to one
+ * we know. Driven by the {@link SelectorLoop} rather than a dedicated
+ * thread.
+ *
  * @author Kenny Root
  */
-public class Relay implements Runnable {
+public class Relay implements FrameDecoder.Listener {
 	private static final String TAG = "ConnectBot.Relay";
 
-	private static final int BUFFER_SIZE = 4096;
-
 	private TerminalBridge bridge;
 
 	private Charset currentCharset;
-	private CharsetDecoder decoder;
 
 	private Transport transport;
 
-	private ArrayList<String> buffer;
+	private HistoryBuffer buffer;
+
+	private final MessageDispatcher dispatcher;
 
-	private ByteBuffer byteBuffer;
-	private CharBuffer charBuffer;
+	private final FrameDecoder frames;
 
-	private byte[] byteArray;
-	private char[] charArray;
+	private final MessageParser parser;
+	private final Message message;
 
-	public Relay(TerminalBridge bridge, Transport transport, ArrayList<String> buffer, String encoding) {
+	private final StringBuilder line = new StringBuilder();
+
+	private boolean changed;
+
+	public Relay(TerminalBridge bridge, Transport transport, HistoryBuffer buffer,
+			MessageDispatcher dispatcher, String encoding) {
 		setCharset(encoding);
 		this.bridge = bridge;
 		this.transport = transport;
 		this.buffer = buffer;
+		this.dispatcher = dispatcher;
+
+		frames = new FrameDecoder();
+		parser = new MessageParser();
+		message = new Message();
 	}
 
+	/**
+	 * Realtime frames are JSON and therefore always UTF-8; the host charset is
+	 * only kept so the bridge can report it.
+	 */
 	public void setCharset(String encoding) {
-		Log.d("ConnectBot.Relay", "changing charset to " + encoding);
+		Log.d(TAG, "changing charset to " + encoding);
 		Charset charset = Charset.forName(encoding);
 
 		if (charset == currentCharset || charset == null)
 			return;
 
-		CharsetDecoder newCd = charset.newDecoder();
-		newCd.onUnmappableCharacter(CodingErrorAction.REPLACE);
-		newCd.onMalformedInput(CodingErrorAction.REPLACE);
-
 		currentCharset = charset;
-		synchronized (this) {
-			decoder = newCd;
-		}
 	}
 
 	public Charset getCharset() {
 		return currentCharset;
 	}
 
-	public void run() {
-		byteBuffer = ByteBuffer.allocate(BUFFER_SIZE);
-		charBuffer = CharBuffer.allocate(BUFFER_SIZE);
-
-		byteArray = byteBuffer.array();
-		charArray = charBuffer.array();
-
-		CoderResult result;
-
-		int bytesRead = 0;
-		byteBuffer.limit(0);
-		int bytesToRead;
-		int offset;
-
-		try {
-			while (true) {
-				bytesToRead = byteBuffer.capacity() - byteBuffer.limit();
-				offset = byteBuffer.arrayOffset() + byteBuffer.limit();
-				bytesRead = transport.read(byteArray, offset, bytesToRead);
-
-				if (bytesRead > 0) {
-					byteBuffer.limit(byteBuffer.limit() + bytesRead);
-
-					synchronized (this) {
-						result = decoder.decode(byteBuffer, charBuffer, false);
-					}
-
-					if (result.isUnderflow() &&
-							byteBuffer.limit() == byteBuffer.capacity()) {
-						byteBuffer.compact();
-						byteBuffer.limit(byteBuffer.position());
-						byteBuffer.position(0);
-					}
-
-					offset = charBuffer.position();
-
-					buffer.add(new String(charArray, 0, charBuffer.position()));
-					charBuffer.clear();
-					bridge.redraw();
-				}
-			}
-		} catch (IOException e) {
-			Log.e(TAG, "Problem while handling incoming data in relay thread", e);
+	/**
+	 * Called on the selector thread when the transport has data waiting.
+	 * Drains everything currently available without blocking.
+	 */
+	public void onReadable() throws IOException {
+		changed = false;
+
+		while (transport.read(frames.getBuffer()) > 0)
+			frames.decode(this);
+
+		if (changed)
+			bridge.redraw();
+	}
+
+	public void onFrame(ByteBuffer frame) throws IOException {
+		if (!parser.parse(frame, message)) {
+			Log.d(TAG, "Dropping malformed frame");
+			transport.onFrameReceived(null);
+			return;
 		}
+
+		transport.onFrameReceived(message);
+
+		if (!message.has(Message.MESSAGE))
+			return;
+
+		MessageStore store = dispatcher.find(message);
+
+		// after a reconnect the node may replay messages we already have
+		if (store != null && message.has(Message.ID) && !store.accept(message.getId()))
+			return;
+
+		// history keeps the line as UTF-8, so no String is needed for it here
+		line.setLength(0);
+		String user = message.getUser();
+		if (user != null)
+			line.append(user).append(": ");
+		line.append(message.getMessage());
+
+		if (store != null)
+			store.add(line, message.getLong(Message.ID, -1));
+		else
+			buffer.add(line);
+
+		changed = true;
 	}
 }
@@ -0,0 +1,301 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.danopia.protonet.service;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.PriorityQueue;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Single network thread shared by every {@link TerminalBridge}. Each
+ * {@link Transport} registers its non-blocking SocketChannel here and gets
+ * called back when the channel connects or becomes readable or writable, so
+ * an open host no longer parks its own relay thread.
+ *
+ * Registration and interest changes may be requested from any thread; they
+ * are queued and applied on the selector thread, since some Selector
+ * implementations block register() while a select() is in progress. The loop
+ * also runs simple timers, so network housekeeping does not need threads of
+ * its own.
+ */
+public class SelectorLoop implements Runnable {
+	private static final String TAG = "ConnectBot.SelectorLoop";
+
+	private final Selector selector;
+
+	private final LinkedList<Runnable> tasks = new LinkedList<Runnable>();
+
+	private final PriorityQueue<Timer> timers = new PriorityQueue<Timer>();
+
+	/**
+	 * Handle for a task scheduled with {@link SelectorLoop#schedule(Runnable, long)}.
+	 */
+	public static class Timer implements Comparable<Timer> {
+		private final Runnable task;
+		private final long when;
+		private volatile boolean cancelled = false;
+
+		private Timer(Runnable task, long when) {
+			this.task = task;
+			this.when = when;
+		}
+
+		public void cancel() {
+			cancelled = true;
+		}
+
+		public boolean isCancelled() {
+			return cancelled;
+		}
+
+		public int compareTo(Timer another) {
+			return when < another.when ? -1 : (when == another.when ? 0 : 1);
+		}
+	}
+
+	private Thread thread;
+
+	private volatile boolean running = false;
+
+	public SelectorLoop() throws IOException {
+		selector = Selector.open();
+	}
+
+	public synchronized void start() {
+		if (running)
+			return;
+
+		running = true;
+
+		thread = new Thread(this);
+		thread.setName("Selector");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stop the loop and close the selector. Registered channels are not
+	 * closed; their owners are expected to do that.
+	 */
+	public synchronized void shutdown() {
+		running = false;
+		selector.wakeup();
+	}
+
+	/**
+	 * @return whether the caller is running on the selector thread
+	 */
+	public boolean inLoop() {
+		return Thread.currentThread() == thread;
+	}
+
+	/**
+	 * Queue a task to run on the selector thread.
+	 */
+	public void post(Runnable task) {
+		synchronized (tasks) {
+			tasks.add(task);
+		}
+
+		// also from the loop itself, so the next select() returns at once
+		selector.wakeup();
+	}
+
+	/**
+	 * Run a task on the selector thread after the given delay.
+	 */
+	public Timer schedule(Runnable task, long delayMillis) {
+		Timer timer = new Timer(task, SystemClock.uptimeMillis() + delayMillis);
+
+		boolean first;
+		synchronized (timers) {
+			timers.add(timer);
+			first = timers.peek() == timer;
+		}
+
+		if (first)
+			selector.wakeup();
+
+		return timer;
+	}
+
+	/**
+	 * Register a channel with the loop. The channel must already be in
+	 * non-blocking mode.
+	 */
+	public void register(final SelectableChannel channel, final int ops, final SocketHandler handler) {
+		post(new Runnable() {
+			public void run() {
+				try {
+					channel.register(selector, ops, handler);
+				} catch (ClosedChannelException e) {
+					handler.onError(e);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Add or remove interest in the given operations for a registered channel.
+	 */
+	public void setInterest(final SelectableChannel channel, final int ops, final boolean wanted) {
+		if (inLoop()) {
+			applyInterest(channel, ops, wanted);
+			return;
+		}
+
+		post(new Runnable() {
+			public void run() {
+				applyInterest(channel, ops, wanted);
+			}
+		});
+	}
+
+	private void applyInterest(SelectableChannel channel, int ops, boolean wanted) {
+		SelectionKey key = channel.keyFor(selector);
+		if (key == null || !key.isValid())
+			return;
+
+		try {
+			if (wanted)
+				key.interestOps(key.interestOps() | ops);
+			else
+				key.interestOps(key.interestOps() & ~ops);
+		} catch (CancelledKeyException e) {
+			// Channel was closed underneath us; nothing left to update.
+		}
+	}
+
+	private void runTasks() {
+		while (true) {
+			Runnable task;
+			synchronized (tasks) {
+				if (tasks.isEmpty())
+					return;
+				task = tasks.removeFirst();
+			}
+
+			try {
+				task.run();
+			} catch (RuntimeException e) {
+				Log.e(TAG, "Task on selector thread failed", e);
+			}
+		}
+	}
+
+	/**
+	 * Run every timer that is due.
+	 * @return milliseconds until the next timer, or 0 if there is none
+	 */
+	private long runTimers() {
+		final long now = SystemClock.uptimeMillis();
+
+		while (true) {
+			Timer timer;
+			synchronized (timers) {
+				timer = timers.peek();
+				if (timer == null)
+					return 0;
+				if (timer.when > now)
+					return timer.when - now;
+				timers.poll();
+			}
+
+			if (timer.cancelled)
+				continue;
+
+			try {
+				timer.task.run();
+			} catch (RuntimeException e) {
+				Log.e(TAG, "Timer on selector thread failed", e);
+			}
+		}
+	}
+
+	private void dispatch(SelectionKey key) {
+		SocketHandler handler = (SocketHandler) key.attachment();
+
+		try {
+			int ready = key.readyOps();
+
+			if ((ready & SelectionKey.OP_CONNECT) != 0)
+				handler.onConnectable();
+
+			if (key.isValid() && (ready & SelectionKey.OP_READ) != 0)
+				handler.onReadable();
+
+			if (key.isValid() && (ready & SelectionKey.OP_WRITE) != 0)
+				handler.onWritable();
+		} catch (CancelledKeyException e) {
+			// Closed by another thread while we were dispatching.
+		} catch (IOException e) {
+			key.cancel();
+			handler.onError(e);
+		} catch (RuntimeException e) {
+			// a bug in one connection must not take down every other one
+			Log.e(TAG, "Socket handler on selector thread failed", e);
+			key.cancel();
+
+			IOException failure = new IOException("Socket handler failed: " + e);
+			failure.initCause(e);
+			try {
+				handler.onError(failure);
+			} catch (RuntimeException again) {
+				Log.e(TAG, "Socket handler could not handle its own failure", again);
+			}
+		}
+	}
+
+	public void run() {
+		try {
+			while (running) {
+				runTasks();
+
+				long timeout = runTimers();
+
+				selector.select(timeout);
+
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while (it.hasNext()) {
+					SelectionKey key = it.next();
+					it.remove();
+
+					if (key.isValid())
+						dispatch(key);
+				}
+			}
+		} catch (IOException e) {
+			Log.e(TAG, "Selector failed, network loop exiting", e);
+		} finally {
+			try {
+				selector.close();
+			} catch (IOException e) {
+				Log.d(TAG, "Error closing selector", e);
+			}
+		}
+	}
+}
@@ -0,0 +1,41 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.danopia.protonet.service;
+
+import java.io.IOException;
+
+/**
+ * Callbacks for a channel registered with the {@link SelectorLoop}. Every
+ * method is invoked on the selector thread and must not block.
+ */
+public interface SocketHandler {
+	/**
+	 * Called once a pending non-blocking connect can be finished.
+	 */
+	public void onConnectable() throws IOException;
+
+	public void onReadable() throws IOException;
+
+	public void onWritable() throws IOException;
+
+	/**
+	 * Called when a callback threw; the selection key has already been
+	 * cancelled at this point.
+	 */
+	public void onError(IOException e);
+}
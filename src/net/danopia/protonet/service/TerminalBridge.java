@@ -17,16 +17,22 @@
 
 package net.danopia.protonet.service;
 
+import java.io.File;
 import java.io.IOException;
 import java.nio.charset.Charset;
-import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import net.danopia.protonet.R;
 import net.danopia.protonet.TerminalView;
 import net.danopia.protonet.bean.ChannelBean;
 import net.danopia.protonet.bean.HostBean;
+import net.danopia.protonet.util.HistoryBuffer;
+import net.danopia.protonet.util.SerialExecutor;
+import android.content.Context;
+import android.os.SystemClock;
 import android.util.Log;
 
 
@@ -52,34 +58,71 @@ public class TerminalBridge {
 
 	private Relay relay;
 
-	private final int scrollback;
+	private int scrollback;
 
-	public ArrayList<String> buffer = null;
+	/* only written on the selector thread; readers take snapshots */
+	public HistoryBuffer buffer = null;
 
-	private TerminalView parent = null;
+	/* the same messages, split up by channel */
+	private final MessageDispatcher dispatcher;
+
+	private volatile TerminalView parent = null;
+
+	/* at most one redraw per display frame */
+	private static final long FRAME_INTERVAL = 16;
+
+	private final AtomicBoolean redrawPending = new AtomicBoolean();
+	private volatile long lastDrawn = 0;
+
+	/*
+	 * Posted to the view for a redraw. Clears the pending flag itself, as a
+	 * view that isn't drawn, e.g. hidden in a flipper, never calls back.
+	 */
+	private final Runnable frame = new Runnable() {
+		public void run() {
+			lastDrawn = SystemClock.uptimeMillis();
+			redrawPending.set(false);
+
+			final TerminalView view = parent;
+			if (view != null)
+				view.invalidate();
+		}
+	};
+
+	/* end of the history as of the last frame; everything after is dirty */
+	private volatile long drawnEnd = 0;
 
 	private boolean disconnected = false;
+	private boolean everConnected = false;
+	private volatile boolean syncConfirmed = false;
 	private boolean awaitingClose = false;
 
 	private final List<String> localOutput;
 
 	public PromptHelper promptHelper;
 
+	/* every outbound operation goes through here, in order */
+	private final SerialExecutor sender;
+
 	protected BridgeDisconnectedListener disconnectListener = null;
 
 	/**
 	 * Create a new terminal bridge suitable for unit testing.
 	 */
 	public TerminalBridge() {
-		buffer = new ArrayList<String>();
+		buffer = new HistoryBuffer(1);
 
 		manager = null;
 
 		scrollback = 1;
 
+		dispatcher = new MessageDispatcher(scrollback, null, null, null);
+
 		localOutput = new LinkedList<String>();
 
 		transport = null;
+
+		sender = null;
 	}
 
 	/**
@@ -98,11 +141,41 @@ public class TerminalBridge {
 
 		localOutput = new LinkedList<String>();
 
+		sender = new SerialExecutor(manager.getWorkers());
+
 		// create terminal buffer and handle outgoing data
 		// this is probably status reply information
-		buffer = new ArrayList<String>();
+		buffer = new HistoryBuffer(scrollback);
+
+		// hosts that aren't saved have nowhere to keep history
+		File historyDir = null;
+		if (host.getId() >= 0)
+			historyDir = new File(manager.getDir("history", Context.MODE_PRIVATE), Long.toString(host.getId()));
+		dispatcher = new MessageDispatcher(scrollback, historyDir, manager.getBackground(), new Executor() {
+			public void execute(final Runnable task) {
+				// stores add the history they loaded, so show it
+				runOnWriter(new Runnable() {
+					public void run() {
+						task.run();
+						redraw();
+					}
+				});
+			}
+		});
+	}
 
-		//buffer.setBufferSize(scrollback);
+	/**
+	 * Change how many lines of history are kept, for the whole bridge and
+	 * for each channel. Shrinking drops the oldest lines.
+	 */
+	public void setScrollback(final int scrollback) {
+		this.scrollback = scrollback;
+		runOnWriter(new Runnable() {
+			public void run() {
+				buffer.setCapacity(scrollback);
+				dispatcher.setCapacity(scrollback);
+			}
+		});
 	}
 
 	public PromptHelper getPromptHelper() {
@@ -110,29 +183,44 @@ public class TerminalBridge {
 	}
 
 	/**
-	 * Spawn thread to open connection and start login process.
+	 * Start opening the connection and logging in. Returns right away; the
+	 * transport calls {@link #onConnected()} once the session is up.
 	 */
 	protected void startConnection() {
+		// a failed attempt has to be able to disconnect, and so retry, again
+		synchronized (this) {
+			disconnected = false;
+		}
+
+		// keep the channels across reconnects, they remember what we last saw
+		List<ChannelBean> previous = null;
+		if (transport != null) {
+			previous = transport.getChannels();
+			transport.close();
+		}
+
 		transport = new Transport();
 		transport.setBridge(this);
 		transport.setManager(manager);
 		transport.setHost(host);
 
 		if (transport.canChannels()) {
-			for (ChannelBean portForward : manager.hostdb.getChannelsForHost(host))
-				transport.addChannel(portForward);
+			if (previous != null) {
+				transport.addChannels(previous);
+			} else {
+				// subscribe to everything at first, in one batch with the login
+				List<ChannelBean> channels = manager.hostdb.getChannelsForHost(host);
+				for (ChannelBean portForward : channels) {
+					portForward.setEnabled(true);
+					dispatcher.register(portForward);
+				}
+				transport.addChannels(channels);
+			}
 		}
 
 		outputLine(manager.res.getString(R.string.terminal_connecting, host.getHostname(), host.getPort()));
 
-		Thread connectionThread = new Thread(new Runnable() {
-			public void run() {
-				transport.connect();
-			}
-		});
-		connectionThread.setName("Connection");
-		connectionThread.setDaemon(true);
-		connectionThread.start();
+		transport.connect();
 	}
 
 	/**
@@ -177,29 +265,58 @@ public class TerminalBridge {
 
 			localOutput.add(s);
 
-			buffer.add(s);
+			appendLine(s);
 		}
 	}
 
+	/**
+	 * Add a line to the history. The buffer only takes writes from the
+	 * selector thread, so from anywhere else this is posted there.
+	 */
+	private void appendLine(final String line) {
+		runOnWriter(new Runnable() {
+			public void run() {
+				buffer.add(line);
+				redraw();
+			}
+		});
+	}
+
+	/* history buffers are written from the selector thread only */
+	private void runOnWriter(Runnable task) {
+		SelectorLoop loop = (manager != null) ? manager.getSelectorLoop() : null;
+		if (loop == null || loop.inLoop())
+			task.run();
+		else
+			loop.post(task);
+	}
+
 	/**
 	 * Inject a specific string into this terminal. Used for post-login strings
-	 * and pasting clipboard.
+	 * and pasting clipboard. The text is posted to the node's home channel.
 	 */
 	public void injectString(final String string) {
 		if (string == null || string.length() == 0)
 			return;
 
-		Thread injectStringThread = new Thread(new Runnable() {
+		send(new Runnable() {
 			public void run() {
 				try {
-					transport.write(string.getBytes(host.getEncoding()));
+					transport.tweet(Transport.HOME_CHANNEL_ID, string);
 				} catch (Exception e) {
 					Log.e(TAG, "Couldn't inject string to remote host: ", e);
 				}
 			}
 		});
-		injectStringThread.setName("InjectString");
-		injectStringThread.start();
+	}
+
+	/**
+	 * Queue an outbound operation. Operations run one at a time, in the order
+	 * they were queued, on the manager's shared worker threads.
+	 */
+	public void send(Runnable operation) {
+		if (sender != null)
+			sender.execute(operation);
 	}
 
 	/**
@@ -207,19 +324,51 @@ public class TerminalBridge {
 	 * authentication. If called before authenticated, it will just fail.
 	 */
 	public void onConnected() {
+		// called by the transport on the selector thread, our buffer's writer
 		disconnected = false;
 
-		buffer.clear();
+		// on a reconnect keep what we have, the transport only fetches what
+		// was missed in between
+		if (!everConnected)
+			buffer.clear();
+		everConnected = true;
 
 		// We no longer need our local output.
 		localOutput.clear();
 
-		// create thread to relay incoming connection data to buffer
-		relay = new Relay(this, transport, buffer, host.getEncoding());
-		Thread relayThread = new Thread(relay);
-		relayThread.setDaemon(true);
-		relayThread.setName("Relay");
-		relayThread.start();
+		// relay incoming connection data to buffer from the selector thread
+		relay = new Relay(this, transport, buffer, dispatcher, host.getEncoding());
+		transport.setRelay(relay);
+	}
+
+	/**
+	 * Called by the transport when the node first talks to us after the
+	 * handshake, i.e. the session is really up.
+	 */
+	void onAuthenticated() {
+		manager.onBridgeAuthenticated(this);
+	}
+
+	/**
+	 * @return whether the node has answered a sync after an earlier
+	 *         reconnect, so it's known to replay missed messages
+	 */
+	boolean isSyncConfirmed() {
+		return syncConfirmed;
+	}
+
+	void setSyncConfirmed() {
+		syncConfirmed = true;
+	}
+
+	/**
+	 * @return smoothed round-trip time to the host in milliseconds, or -1 if
+	 *         not measured yet
+	 */
+	public long getSmoothedRtt() {
+		if (transport != null)
+			return transport.getSmoothedRtt();
+		return -1;
 	}
 
 	/**
@@ -250,16 +399,11 @@ public class TerminalBridge {
 		// Cancel any pending prompts.
 		promptHelper.cancelPrompt();
 
-		// disconnection request hangs if we havent really connected to a host yet
-		// temporary fix is to just spawn disconnection into a thread
-		Thread disconnectThread = new Thread(new Runnable() {
-			public void run() {
-				if (transport != null && transport.isConnected())
-					transport.close();
-			}
-		});
-		disconnectThread.setName("Disconnect");
-		disconnectThread.start();
+		// closing doesn't block, and also abandons a handshake in progress;
+		// only this transport, a reconnect may replace the field any time
+		final Transport closing = transport;
+		if (closing != null)
+			closing.close();
 
 		if (immediate) {
 			awaitingClose = true;
@@ -268,7 +412,7 @@ public class TerminalBridge {
 		} else {
 			{
 				final String line = manager.res.getString(R.string.alert_disconnect_msg);
-				buffer.add("\r\n" + line + "\r\n");
+				appendLine("\r\n" + line + "\r\n");
 			}
 			if (host.getStayConnected()) {
 				manager.requestReconnect(this);
@@ -297,17 +441,59 @@ public class TerminalBridge {
 		manager.tryKeyVibrate();
 	}
 
+	/**
+	 * A {@link TerminalView} is now showing this bridge; redraw it as lines
+	 * arrive.
+	 */
+	public synchronized void parentChanged(TerminalView parent) {
+		this.parent = parent;
+		redrawPending.set(false);
+	}
+
 	/**
 	 * Somehow our parent {@link TerminalView} was destroyed. Now we don't need
-	 * to redraw anywhere, and we can recycle our internal bitmap.
+	 * to redraw anywhere, unless another view has taken over since.
 	 */
-	public synchronized void parentDestroyed() {
-		parent = null;
+	public synchronized void parentDestroyed(TerminalView view) {
+		if (parent == view)
+			parent = null;
 	}
 
+	/**
+	 * New lines were added to the history. Bursts of these are coalesced
+	 * into at most one invalidation per display frame: the first one after
+	 * a quiet spell draws right away, the rest wait for the next frame.
+	 * Nothing is invalidated while the view is scrolled back above the
+	 * lines that changed.
+	 */
 	public void redraw() {
-		if (parent != null)
-			parent.postInvalidate();
+		final TerminalView view = parent;
+		if (view == null || !view.isShowing(drawnEnd))
+			return;
+
+		if (!redrawPending.compareAndSet(false, true))
+			return;
+
+		long wait = lastDrawn + FRAME_INTERVAL - SystemClock.uptimeMillis();
+		boolean posted = (wait > 0) ? view.postDelayed(frame, wait) : view.post(frame);
+		if (!posted)
+			redrawPending.set(false);
+	}
+
+	/**
+	 * Called by the view as it starts a frame, before it looks at the
+	 * history, so lines added from now on ask for another one.
+	 */
+	public void onDrawStarted() {
+		lastDrawn = SystemClock.uptimeMillis();
+		redrawPending.set(false);
+	}
+
+	/**
+	 * @param end end of the history the frame drew, from its snapshot
+	 */
+	public void onDrawn(long end) {
+		drawnEnd = end;
 	}
 
 	/**
@@ -316,6 +502,7 @@ public class TerminalBridge {
 	 * @return true on successful addition
 	 */
 	public boolean addChannel(ChannelBean portForward) {
+		dispatcher.register(portForward);
 		return transport.addChannel(portForward);
 	}
 
@@ -325,9 +512,25 @@ public class TerminalBridge {
 	 * @return true on successful removal
 	 */
 	public boolean removeChannel(ChannelBean portForward) {
+		dispatcher.unregister(portForward);
 		return transport.removeChannel(portForward);
 	}
 
+	/**
+	 * The bridge is going away; write out and close channel history.
+	 */
+	public void closeHistory() {
+		dispatcher.close();
+	}
+
+	/**
+	 * @return messages received in this channel, or null if it isn't one of
+	 *         ours
+	 */
+	public MessageStore getMessages(ChannelBean channel) {
+		return dispatcher.get(channel);
+	}
+
 	/**
 	 * @return the list of port forwards
 	 */
@@ -20,12 +20,18 @@ package net.danopia.protonet.service;
 import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import net.danopia.protonet.R;
 import net.danopia.protonet.bean.HostBean;
+import net.danopia.protonet.client.HttpClientPool;
+import net.danopia.protonet.util.BufferPool;
 import net.danopia.protonet.util.HostDatabase;
 import net.danopia.protonet.util.PreferenceConstants;
 import android.app.Service;
@@ -80,6 +86,26 @@ public class TerminalManager extends Service implements BridgeDisconnectedListen
 
 	private ConnectivityReceiver connectivityManager;
 
+	private SelectorLoop selectorLoop;
+	private IOException selectorError;
+
+	private final BufferPool bufferPool = new BufferPool();
+
+	private TokenCache tokenCache;
+
+	private ReconnectScheduler reconnects;
+
+	private static final int CONNECT_THREADS = 4;
+	private static final int WORKER_THREADS = 4;
+
+	/*
+	 * Blocking work is split up by what it waits on, so a slow login can't
+	 * hold up sends and disk writes can't hold up either.
+	 */
+	private final ExecutorService connectors = newPool(CONNECT_THREADS, "Connect", Thread.NORM_PRIORITY);
+	private final ExecutorService workers = newPool(WORKER_THREADS, "Worker", Thread.NORM_PRIORITY);
+	private final ExecutorService background = newPool(1, "Background", Thread.MIN_PRIORITY);
+
 	private MediaPlayer mediaPlayer;
 
 	private Vibrator vibrator;
@@ -104,6 +130,18 @@ public class TerminalManager extends Service implements BridgeDisconnectedListen
 
 		hostdb = new HostDatabase(this);
 
+		tokenCache = new TokenCache(getSharedPreferences(TokenCache.STORE_NAME, Context.MODE_PRIVATE),
+				prefs.getBoolean(PreferenceConstants.REMEMBER_LOGIN, false));
+
+		try {
+			selectorLoop = new SelectorLoop();
+			selectorLoop.start();
+			reconnects = new ReconnectScheduler(selectorLoop);
+		} catch (IOException e) {
+			Log.e(TAG, "Could not open network selector", e);
+			selectorError = e;
+		}
+
 		vibrator = (Vibrator) getSystemService(Context.VIBRATOR_SERVICE);
 
 		wantBellVibration = prefs.getBoolean(PreferenceConstants.BELL_VIBRATE, true);
@@ -124,6 +162,22 @@ public class TerminalManager extends Service implements BridgeDisconnectedListen
 
 		disconnectAll(true);
 
+		// the bridges disconnect on their own threads; get the history
+		// written out while the background executor still takes work
+		synchronized (bridges) {
+			for (TerminalBridge bridge : bridges)
+				bridge.closeHistory();
+		}
+
+		if (selectorLoop != null)
+			selectorLoop.shutdown();
+
+		connectors.shutdown();
+		workers.shutdown();
+		background.shutdown();
+
+		HttpClientPool.shutdown();
+
 		if(hostdb != null) {
 			hostdb.close();
 			hostdb = null;
@@ -191,6 +245,74 @@ public class TerminalManager extends Service implements BridgeDisconnectedListen
 		return bridge;
 	}
 
+	/**
+	 * @return the network loop shared by every bridge's transport
+	 */
+	public SelectorLoop getSelectorLoop() {
+		return selectorLoop;
+	}
+
+	/**
+	 * @return why there is no selector loop, or null if there is one
+	 */
+	public IOException getSelectorError() {
+		return selectorError;
+	}
+
+	/**
+	 * @return login tokens remembered for reconnecting without logging in
+	 */
+	public TokenCache getTokenCache() {
+		return tokenCache;
+	}
+
+	/**
+	 * @return pool of outbound buffers shared by every bridge's transport
+	 */
+	public BufferPool getBufferPool() {
+		return bufferPool;
+	}
+
+	private static ExecutorService newPool(int threads, final String name, final int priority) {
+		return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			private int count = 0;
+
+			public synchronized Thread newThread(Runnable r) {
+				Thread t = new Thread(r);
+				t.setName(name + "-" + (++count));
+				t.setPriority(priority);
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * @return pool for setting up connections: logins, DNS lookups and
+	 *         starting bridges, all of which can block on the network for
+	 *         a long time
+	 */
+	public ExecutorService getConnectors() {
+		return connectors;
+	}
+
+	/**
+	 * @return small shared pool for outbound operations; bridges wrap it in
+	 *         a {@link net.danopia.protonet.util.SerialExecutor} when they need
+	 *         ordering
+	 */
+	public ExecutorService getWorkers() {
+		return workers;
+	}
+
+	/**
+	 * @return single low-priority thread for disk and other housekeeping
+	 *         that nobody is waiting on, like writing history
+	 */
+	public ExecutorService getBackground() {
+		return background;
+	}
+
 	public int getScrollback() {
 		int scrollback = 140;
 		try {
@@ -200,6 +322,19 @@ public class TerminalManager extends Service implements BridgeDisconnectedListen
 		return scrollback;
 	}
 
+	/**
+	 * @return milliseconds between heartbeats on the realtime connection, or
+	 *         0 if heartbeats are turned off
+	 */
+	public long getHeartbeatInterval() {
+		int seconds = 30;
+		try {
+			seconds = Integer.parseInt(prefs.getString(PreferenceConstants.HEARTBEAT, "30"));
+		} catch(Exception e) {
+		}
+		return seconds * 1000L;
+	}
+
 	/**
 	 * Open a new connection by reading parameters from the given URI. Follows
 	 * format specified by an individual transport.
@@ -269,6 +404,11 @@ public class TerminalManager extends Service implements BridgeDisconnectedListen
 
 			connectivityManager.decRef();
 
+			if (reconnects != null)
+				reconnects.cancel(bridge);
+
+			bridge.closeHistory();
+
 			if (bridges.size() == 0 &&
 					mPendingReconnect.size() == 0) {
 				shouldHideRunningNotification = true;
@@ -433,6 +573,15 @@ public class TerminalManager extends Service implements BridgeDisconnectedListen
 		} else if (PreferenceConstants.WIFI_LOCK.equals(key)) {
 			final boolean lockingWifi = prefs.getBoolean(PreferenceConstants.WIFI_LOCK, true);
 			connectivityManager.setWantWifiLock(lockingWifi);
+		} else if (PreferenceConstants.SCROLLBACK.equals(key)) {
+			final int scrollback = getScrollback();
+			synchronized (bridges) {
+				for (TerminalBridge bridge : bridges)
+					bridge.setScrollback(scrollback);
+			}
+		} else if (PreferenceConstants.REMEMBER_LOGIN.equals(key)) {
+			tokenCache.setPersistent(sharedPreferences.getBoolean(
+					PreferenceConstants.REMEMBER_LOGIN, false));
 		}
 	}
 
@@ -441,6 +590,10 @@ public class TerminalManager extends Service implements BridgeDisconnectedListen
 	 * we'll be getting a different connection any time soon.
 	 */
 	public void onConnectivityLost() {
+		// retried once connectivity comes back
+		if (reconnects != null)
+			reconnects.cancelAll();
+
 		final Thread t = new Thread() {
 			@Override
 			public void run() {
@@ -466,35 +619,83 @@ public class TerminalManager extends Service implements BridgeDisconnectedListen
 	}
 
 	/**
-	 * Insert request into reconnect queue to be executed either immediately
-	 * or later when connectivity is restored depending on whether we're
-	 * currently connected.
+	 * Insert request into reconnect queue to be executed either after the
+	 * bridge's backoff delay or later when connectivity is restored depending
+	 * on whether we're currently connected.
 	 *
 	 * @param bridge the TerminalBridge to reconnect when possible
 	 */
 	public void requestReconnect(TerminalBridge bridge) {
 		synchronized (mPendingReconnect) {
-			mPendingReconnect.add(new WeakReference<TerminalBridge>(bridge));
+			if (!isPendingReconnect(bridge))
+				mPendingReconnect.add(new WeakReference<TerminalBridge>(bridge));
 			if (connectivityManager.isConnected()) {
-				reconnectPending();
+				scheduleReconnect(bridge);
 			}
 		}
 	}
 
+	private boolean isPendingReconnect(TerminalBridge bridge) {
+		for (WeakReference<TerminalBridge> ref : mPendingReconnect) {
+			if (ref.get() == bridge)
+				return true;
+		}
+		return false;
+	}
+
 	/**
 	 * Reconnect all bridges that were pending a reconnect when connectivity
-	 * was lost.
+	 * was lost. The new network gets a fresh backoff, but the reconnects are
+	 * still spread out by jitter.
 	 */
 	private void reconnectPending() {
+		if (reconnects == null)
+			return;
+
+		reconnects.resetAll();
+
 		synchronized (mPendingReconnect) {
 			for (WeakReference<TerminalBridge> ref : mPendingReconnect) {
 				TerminalBridge bridge = ref.get();
 				if (bridge == null) {
 					continue;
 				}
-				bridge.startConnection();
+				scheduleReconnect(bridge);
 			}
-			mPendingReconnect.clear();
 		}
 	}
+
+	private void scheduleReconnect(final TerminalBridge bridge) {
+		if (reconnects == null)
+			return;
+
+		reconnects.schedule(bridge, new Runnable() {
+			public void run() {
+				synchronized (mPendingReconnect) {
+					Iterator<WeakReference<TerminalBridge>> it = mPendingReconnect.iterator();
+					while (it.hasNext()) {
+						TerminalBridge pending = it.next().get();
+						if (pending == null || pending == bridge)
+							it.remove();
+					}
+				}
+
+				// reading the host's channels touches the database
+				connectors.execute(new Runnable() {
+					public void run() {
+						bridge.startConnection();
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * Called by a bridge once its connection is working, so a later drop is
+	 * retried quickly again.
+	 */
+	public void onBridgeAuthenticated(TerminalBridge bridge) {
+		if (reconnects != null)
+			reconnects.reset(bridge);
+	}
 }
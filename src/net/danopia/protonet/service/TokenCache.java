@@ -0,0 +1,148 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.danopia.protonet.service;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import net.danopia.protonet.bean.HostBean;
+import net.danopia.protonet.client.LoginToken;
+import android.content.SharedPreferences;
+
+/**
+ * Remembers the login token for each host so a reconnect can go straight to
+ * the realtime socket instead of logging in over HTTPS again. Tokens are
+ * kept in memory and, if enabled, in a private preferences file so they also
+ * survive a service restart. That file is deliberately not the hosts
+ * database or the default preferences, which {@link BackupAgent} copies off
+ * the device.
+ */
+public class TokenCache {
+	/* name of the preferences file tokens are stored in */
+	public static final String STORE_NAME = "tokens";
+
+	private final Map<HostBean, LoginToken> tokens = new HashMap<HostBean, LoginToken>();
+
+	private final SharedPreferences store;
+
+	private volatile boolean persistent;
+
+	/**
+	 * @param store where to keep tokens across restarts; must not be backed up
+	 */
+	public TokenCache(SharedPreferences store, boolean persistent) {
+		this.store = store;
+		this.persistent = persistent;
+	}
+
+	/**
+	 * @return a token still valid for the host's current login and hostname,
+	 *         or null if we have to log in
+	 */
+	public LoginToken get(HostBean host) {
+		LoginToken token;
+
+		synchronized (tokens) {
+			token = tokens.get(host);
+		}
+
+		if (token == null && persistent)
+			token = load(host);
+
+		if (token != null && !token.isValidFor(host.getUsername(), host.getHostname())) {
+			invalidate(host);
+			return null;
+		}
+
+		return token;
+	}
+
+	public void put(HostBean host, LoginToken token) {
+		synchronized (tokens) {
+			tokens.put(host, token);
+		}
+
+		if (persistent)
+			save(host, token);
+	}
+
+	/**
+	 * Forget the host's token, e.g. because the node refused it or the host
+	 * was deleted.
+	 */
+	public void invalidate(HostBean host) {
+		synchronized (tokens) {
+			tokens.remove(host);
+		}
+
+		save(host, null);
+	}
+
+	/**
+	 * Turning persistence off also wipes tokens already written to disk.
+	 */
+	public void setPersistent(boolean persistent) {
+		this.persistent = persistent;
+
+		if (!persistent && store != null)
+			store.edit().clear().commit();
+	}
+
+	private LoginToken load(HostBean host) {
+		if (store == null || host.getId() < 0)
+			return null;
+
+		final String key = key(host);
+		String token = store.getString(key + ".token", null);
+		if (token == null)
+			return null;
+
+		LoginToken login = new LoginToken(store.getString(key + ".userid", null), token,
+				store.getString(key + ".for", null), store.getLong(key + ".expires", 0));
+
+		synchronized (tokens) {
+			tokens.put(host, login);
+		}
+		return login;
+	}
+
+	/* store a token, or forget it if it's null */
+	private void save(HostBean host, LoginToken token) {
+		if (store == null || host.getId() < 0)
+			return;
+
+		final String key = key(host);
+		SharedPreferences.Editor edit = store.edit();
+		if (token != null) {
+			edit.putString(key + ".userid", token.getUserId());
+			edit.putString(key + ".token", token.getToken());
+			edit.putString(key + ".for", token.getIssuedFor());
+			edit.putLong(key + ".expires", token.getExpires());
+		} else {
+			edit.remove(key + ".userid");
+			edit.remove(key + ".token");
+			edit.remove(key + ".for");
+			edit.remove(key + ".expires");
+		}
+		edit.commit();
+	}
+
+	private static String key(HostBean host) {
+		return "host." + host.getId();
+	}
+}
@@ -18,15 +18,21 @@
 package net.danopia.protonet.service;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.Socket;
-import java.net.SocketException;
+import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -34,11 +40,12 @@ import net.danopia.protonet.R;
 import net.danopia.protonet.bean.ChannelBean;
 import net.danopia.protonet.bean.HostBean;
 import net.danopia.protonet.client.Fetcher;
+import net.danopia.protonet.client.LoginToken;
+import net.danopia.protonet.client.Message;
+import net.danopia.protonet.client.MessageParser;
+import net.danopia.protonet.client.MessageWriter;
 import net.danopia.protonet.util.HostDatabase;
 
-import org.json.JSONException;
-import org.json.JSONObject;
-
 import android.content.Context;
 import android.net.Uri;
 import android.util.Log;
@@ -47,10 +54,11 @@ import android.util.Log;
  * @author Kenny Root
  *
  */
-public class Transport {
+public class Transport implements SocketHandler, Heartbeat.Listener {
 	HostBean host;
 	TerminalBridge bridge;
 	TerminalManager manager;
+	Relay relay;
 
 	/**
 	 * @return protocol part of the URI
@@ -71,6 +79,10 @@ public class Transport {
 		this.manager = manager;
 	}
 
+	public void setRelay(Relay relay) {
+		this.relay = relay;
+	}
+
 
 
 
@@ -115,21 +127,65 @@ public class Transport {
 	private static final String TAG = "ConnectBot.SSH";
 	private static final int DEFAULT_PORT = 22;
 
+	/* the node's public channel, present on every Protonet box */
+	public static final long HOME_CHANNEL_ID = 1;
+
 	static final Pattern hostmask;
 	static {
 		hostmask = Pattern.compile("^(.+)@([0-9a-z.-]+)(:(\\d+))?$", Pattern.CASE_INSENSITIVE);
 	}
 
-	private Socket socket;
-	private InputStream is;
-	private OutputStream os;
+	private volatile SocketChannel socket;
+
+	private OutboundQueue outgoing;
+
+	private MessageWriter writer;
+
+	/* for operations sent from the selector thread, which must never wait on writer */
+	private MessageWriter loopWriter;
 
+	private volatile Heartbeat heartbeat;
+
+	private static final int REALTIME_PORT = 5000;
+
+	/* covers login, DNS and the socket connect together */
+	private static final long HANDSHAKE_TIMEOUT = 20 * 1000;
+
+	/* handshake progress, only touched on the selector thread */
+	private volatile SelectorLoop.Timer handshakeTimer;
+	private volatile Connector connector;
+	private LoginToken loginToken;
+	private boolean loginReady = false;
+	private boolean socketReady = false;
+
+	private volatile boolean closed = false;
 	private volatile boolean authenticated = false;
+	private volatile boolean usingCachedToken = false;
 	private volatile boolean connected = false;
 	private volatile boolean sessionOpen = false;
 
 	private List<ChannelBean> channels = new LinkedList<ChannelBean>();
 
+	/* channel subscriptions of this connection; only changed on the selector thread */
+	private final Set<String> subscribed = Collections.synchronizedSet(new HashSet<String>());
+
+	/* batches enable/disable requests, maps uuid to whether to subscribe */
+	private static final long SUBSCRIPTION_DELAY = 100;
+	private final Map<String, Boolean> pendingSubscriptions = new LinkedHashMap<String, Boolean>();
+	private SelectorLoop.Timer subscriptionTimer;
+
+	/*
+	 * The sync operation isn't known to be supported by every node. Until a
+	 * node has answered one, we wait this long for a replay in any of the
+	 * synced channels, and otherwise subscribe to them again from scratch.
+	 */
+	private static final long SYNC_TIMEOUT = 10 * 1000;
+	private static final byte[] SYNC = Message.ascii("sync");
+
+	/* channels still waiting for a replay; only touched on the selector thread */
+	private Set<String> syncPending;
+	private volatile SelectorLoop.Timer syncTimer;
+
 	/*private void authenticate() {
 		bridge.outputLine(manager.res.getString(R.string.terminal_auth));
 
@@ -186,42 +242,291 @@ public class Transport {
 	}
 	*/
 
+	/**
+	 * Log in over HTTPS to get a token for the realtime socket.
+	 * @return the new token, or null if the reply made no sense
+	 */
+	private LoginToken login() throws IOException {
+		Fetcher fetcher = new Fetcher("https://" + host.getHostname());
+		String loginData = fetcher.doLogin(host.getUsername(), "password");
+		fetcher.shutdown();
+
+		byte[] loginBytes = loginData.getBytes("UTF-8");
+		Message loginReply = new Message();
+		if (!new MessageParser().parse(loginBytes, 0, loginBytes.length, loginReply)
+				|| !loginReply.has(Message.TOKEN) || !loginReply.has(Message.USER_ID)) {
+			Log.e(TAG, "Could not parse login reply");
+			return null;
+		}
+
+		return new LoginToken(loginReply.getUserId(), loginReply.getToken(),
+				LoginToken.describe(host.getUsername(), host.getHostname()),
+				System.currentTimeMillis() + LoginToken.DEFAULT_LIFETIME);
+	}
+
+	/**
+	 * Start connecting without blocking the caller. The HTTPS login (or a
+	 * cached token) and the DNS lookup run on the manager's connectors at the
+	 * same time; the socket connect, raced across all of the host's addresses
+	 * by a {@link Connector}, and everything after it is driven by the
+	 * selector loop. Once both sides are ready, authenticate and the channel
+	 * subscriptions go out together in one write.
+	 */
 	public void connect() {
-		try {
-			Fetcher fetcher = new Fetcher("https://" + host.getHostname());
-			String loginData = fetcher.doLogin(host.getUsername(), "password");
+		final SelectorLoop loop = manager.getSelectorLoop();
+		if (loop == null) {
+			// the service couldn't open a selector, so nothing can connect
+			IOException cause = manager.getSelectorError();
+			String reason = (cause != null && cause.getMessage() != null)
+					? cause.getMessage() : host.getHostname();
+			fail(manager.res.getString(R.string.terminal_no_network, reason), cause);
+			return;
+		}
 
-			String token = "";
-			String userId = "";
-			try {
-				JSONObject loginObject = new JSONObject(loginData);
-				token = loginObject.getString("token");
-				userId = loginObject.getString("user_id");
-			} catch (JSONException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
+		writer = new MessageWriter(manager.getBufferPool());
+		loopWriter = new MessageWriter(manager.getBufferPool());
+
+		loop.post(new Runnable() {
+			public void run() {
+				startHandshake();
 			}
+		});
+	}
 
-			socket = new Socket(host.getHostname(), 5000);
+	private void startHandshake() {
+		if (closed)
+			return;
 
-			connected = true;
+		final SelectorLoop loop = manager.getSelectorLoop();
+		final ExecutorService connectors = manager.getConnectors();
+
+		handshakeTimer = loop.schedule(new Runnable() {
+			public void run() {
+				fail(manager.res.getString(R.string.terminal_connect_timeout, host.getHostname()), null);
+			}
+		}, HANDSHAKE_TIMEOUT);
+
+		connectors.execute(new Runnable() {
+			public void run() {
+				try {
+					final LoginToken login = obtainToken();
+					loop.post(new Runnable() {
+						public void run() {
+							onLoggedIn(login);
+						}
+					});
+				} catch (IOException e) {
+					postFailure(e);
+				}
+			}
+		});
+
+		connectors.execute(new Runnable() {
+			public void run() {
+				try {
+					final InetAddress[] addresses = InetAddress.getAllByName(host.getHostname());
+					loop.post(new Runnable() {
+						public void run() {
+							openSocket(addresses);
+						}
+					});
+				} catch (UnknownHostException e) {
+					postFailure(e);
+				}
+			}
+		});
+	}
 
-			is = socket.getInputStream();
-			os = socket.getOutputStream();
+	/**
+	 * Runs on a connector thread, may do network and database I/O.
+	 */
+	private LoginToken obtainToken() throws IOException {
+		TokenCache tokens = manager.getTokenCache();
 
-			os.write(("{\"operation\":\"authenticate\",\"payload\":{\"user_id\":" + userId + ",\"type\":\"api\",\"token\":\"" + token + "\"}}\0").getBytes(host.getEncoding()));
-			os.write(("{\"operation\":\"tweet\",\"channel_id\":1,\"message\":\"hey from the app\",\"text_extension\":\"\"}\0").getBytes(host.getEncoding()));
+		LoginToken login = tokens.get(host);
+		usingCachedToken = (login != null);
 
-			bridge.onConnected();
-		} catch (UnknownHostException e) {
-			Log.d(TAG, "IO Exception connecting to host", e);
+		if (login == null) {
+			login = login();
+			if (login != null)
+				tokens.put(host, login);
+		} else {
+			Log.d(TAG, "Reusing login token for " + login.getIssuedFor());
+		}
+
+		return login;
+	}
+
+	private void openSocket(InetAddress[] addresses) {
+		if (closed)
+			return;
+
+		connector = new Connector(manager.getSelectorLoop(), addresses, REALTIME_PORT,
+				new Connector.Callback() {
+			public void onConnected(SocketChannel channel) {
+				connector = null;
+				socket = channel;
+				if (closed)
+					close();
+				else
+					onSocketConnected();
+			}
+
+			public void onFailed(IOException e) {
+				connector = null;
+				fail(e);
+			}
+		});
+		connector.start();
+	}
+
+	public void onConnectable() throws IOException {
+		// the connector does the connecting
+	}
+
+	private void onSocketConnected() {
+		try {
+			// the heartbeat can't tell a dead link from a node that ignores pings
+			socket.socket().setKeepAlive(true);
 		} catch (IOException e) {
-			Log.d(TAG, "IO Exception connecting to host", e);
+			Log.d(TAG, "Could not enable TCP keepalive", e);
 		}
+
+		outgoing = new OutboundQueue(manager.getBufferPool(), manager.getSelectorLoop(), socket);
+		socketReady = true;
+		finishHandshake();
+	}
+
+	private void onLoggedIn(LoginToken login) {
+		loginToken = login;
+		loginReady = true;
+		finishHandshake();
+	}
+
+	private void finishHandshake() {
+		if (closed || !socketReady || !loginReady)
+			return;
+
+		handshakeTimer.cancel();
+
+		String token = "";
+		String userId = "";
+		if (loginToken != null) {
+			token = loginToken.getToken();
+			userId = loginToken.getUserId();
+		}
+
+		List<String> uuids = new LinkedList<String>();
+		String[] syncUuids = new String[channels.size()];
+		long[] syncIds = new long[channels.size()];
+		int syncCount = 0;
+		for (ChannelBean channel : channels) {
+			if (channel.getUuid() != null && channel.isEnabled()) {
+				uuids.add(channel.getUuid());
+
+				// seen this channel on an earlier connection, only fetch what we missed
+				if (channel.getLastMessageId() >= 0) {
+					syncUuids[syncCount] = channel.getUuid();
+					syncIds[syncCount++] = channel.getLastMessageId();
+				}
+			}
+		}
+
+		try {
+			// the queue coalesces these, so they leave in a single write
+			synchronized (writer) {
+				outgoing.offer(writer.authenticate(userId, token));
+				if (!uuids.isEmpty())
+					outgoing.offer(writer.subscribe(uuids));
+				if (syncCount > 0)
+					outgoing.offer(writer.sync(syncUuids, syncIds, syncCount));
+				outgoing.offer(writer.tweet(HOME_CHANNEL_ID, "hey from the app"));
+			}
+		} catch (IOException e) {
+			fail(e);
+			return;
+		}
+
+		if (syncCount > 0 && !bridge.isSyncConfirmed()) {
+			syncPending = new HashSet<String>();
+			for (int i = 0; i < syncCount; i++)
+				syncPending.add(syncUuids[i]);
+			syncTimer = manager.getSelectorLoop().schedule(syncFallback, SYNC_TIMEOUT);
+		}
+
+		subscribed.addAll(uuids);
+
+		// changes made while disconnected are on the channels we just
+		// subscribed from; flushing them sends only what raced with that
+		synchronized (pendingSubscriptions) {
+			connected = true;
+			if (!pendingSubscriptions.isEmpty() && subscriptionTimer == null)
+				subscriptionTimer = manager.getSelectorLoop().schedule(flushSubscriptions, SUBSCRIPTION_DELAY);
+		}
+
+		bridge.onConnected();
+
+		long interval = manager.getHeartbeatInterval();
+		if (interval > 0) {
+			heartbeat = new Heartbeat(manager.getSelectorLoop(), this, interval);
+			heartbeat.start();
+		}
+
+		// takes the channel over from the connector's registration
+		manager.getSelectorLoop().register(socket, SelectionKey.OP_READ | SelectionKey.OP_WRITE, this);
+	}
+
+	private void postFailure(final IOException e) {
+		manager.getSelectorLoop().post(new Runnable() {
+			public void run() {
+				fail(e);
+			}
+		});
+	}
+
+	private void fail(IOException e) {
+		String reason = e.getMessage();
+		if (reason == null)
+			reason = e.getClass().getSimpleName();
+		fail(manager.res.getString(R.string.terminal_connect_failed, reason), e);
+	}
+
+	/**
+	 * Give up on a handshake still in progress.
+	 */
+	private void fail(String reason, IOException e) {
+		if (closed || connected)
+			return;
+
+		Log.d(TAG, "Connecting to host failed: " + reason, e);
+
+		bridge.outputLine(reason);
+		close();
+		bridge.dispatchDisconnect(false);
 	}
 
 	public void close() {
+		closed = true;
 		connected = false;
+		SelectorLoop.Timer timer = handshakeTimer;
+		if (timer != null)
+			timer.cancel();
+		timer = syncTimer;
+		if (timer != null)
+			timer.cancel();
+		Connector connector = this.connector;
+		if (connector != null)
+			connector.cancel();
+		final Heartbeat heartbeat = this.heartbeat;
+		if (heartbeat != null) {
+			manager.getSelectorLoop().post(new Runnable() {
+				public void run() {
+					heartbeat.stop();
+				}
+			});
+		}
+		if (outgoing != null)
+			outgoing.close();
 		if (socket != null)
 			try {
 				socket.close();
@@ -232,7 +537,7 @@ public class Transport {
 	}
 
 	public void flush() throws IOException {
-		os.flush();
+		// Writes are queued and drained by the selector thread.
 	}
 
 	public boolean isSessionOpen() {
@@ -259,6 +564,10 @@ public class Transport {
 		return channels.add(portForward);
 	}
 
+	public boolean addChannels(Collection<ChannelBean> portForwards) {
+		return channels.addAll(portForwards);
+	}
+
 	public boolean removeChannel(ChannelBean portForward) {
 		// Make sure we don't have a phantom forwarder.
 		disableChannel(portForward);
@@ -272,60 +581,10 @@ public class Transport {
 			return false;
 		}
 
-		if (!authenticated)
-			return false;
-
-		// TODO: Subscribe to channel (if needed?)
-		/*
-		if (HostDatabase.PORTFORWARD_LOCAL.equals(portForward.getType())) {
-			LocalPortForwarder lpf = null;
-			try {
-				lpf = connection.createLocalPortForwarder(
-						new InetSocketAddress(InetAddress.getLocalHost(), portForward.getSourcePort()),
-						portForward.getDestAddr(), portForward.getDestPort());
-			} catch (Exception e) {
-				Log.e(TAG, "Could not create local port forward", e);
-				return false;
-			}
-
-			if (lpf == null) {
-				Log.e(TAG, "returned LocalPortForwarder object is null");
-				return false;
-			}
-
-			portForward.setIdentifier(lpf);
-			portForward.setEnabled(true);
-			return true;
-		} else if (HostDatabase.PORTFORWARD_REMOTE.equals(portForward.getType())) {
-			try {
-				connection.requestRemotePortForwarding("", portForward.getSourcePort(), portForward.getDestAddr(), portForward.getDestPort());
-			} catch (Exception e) {
-				Log.e(TAG, "Could not create remote port forward", e);
-				return false;
-			}
-
-			portForward.setEnabled(true);
-			return true;
-		} else if (HostDatabase.PORTFORWARD_DYNAMIC5.equals(portForward.getType())) {
-			DynamicPortForwarder dpf = null;
-
-			try {
-				dpf = connection.createDynamicPortForwarder(
-						new InetSocketAddress(InetAddress.getLocalHost(), portForward.getSourcePort()));
-			} catch (Exception e) {
-				Log.e(TAG, "Could not create dynamic port forward", e);
-				return false;
-			}
-
-			portForward.setIdentifier(dpf);
-			portForward.setEnabled(true);
-			return true;
-		} else {
-			// Unsupported type
-			Log.e(TAG, String.format("attempt to forward unknown type %s", portForward.getType()));
-			return false;
-		}
-		*/
+		// recorded even while disconnected; the next handshake subscribes
+		// to whatever is enabled then
+		portForward.setEnabled(true);
+		queueSubscription(portForward.getUuid(), true);
 		return true;
 	}
 
@@ -335,67 +594,97 @@ public class Transport {
 			return false;
 		}
 
-		if (!authenticated)
-			return false;
+		// recorded even while disconnected; the next handshake subscribes
+		// to whatever is enabled then
+		portForward.setEnabled(false);
+		queueSubscription(portForward.getUuid(), false);
+		return true;
+	}
 
-		// TODO: Unsubscribe to channel (if needed?)
-		/*
-		if (HostDatabase.PORTFORWARD_LOCAL.equals(portForward.getType())) {
-			LocalPortForwarder lpf = null;
-			lpf = (LocalPortForwarder)portForward.getIdentifier();
+	/**
+	 * Remember a subscription change and send it, together with whatever else
+	 * changes in the meantime, after {@link #SUBSCRIPTION_DELAY}. Until we
+	 * are connected nothing is sent; the handshake takes care of it.
+	 */
+	private void queueSubscription(String uuid, boolean subscribe) {
+		if (uuid == null)
+			return;
 
-			if (!portForward.isEnabled() || lpf == null) {
-				Log.d(TAG, String.format("Could not disable %s; it appears to be not enabled or have no handler", portForward.getNickname()));
-				return false;
-			}
+		synchronized (pendingSubscriptions) {
+			// the latest request for a channel wins
+			pendingSubscriptions.put(uuid, subscribe);
 
-			portForward.setEnabled(false);
+			if (subscriptionTimer == null && connected)
+				subscriptionTimer = manager.getSelectorLoop().schedule(flushSubscriptions, SUBSCRIPTION_DELAY);
+		}
+	}
 
-			try {
-				lpf.close();
-			} catch (IOException e) {
-				Log.e(TAG, "Could not stop local port forwarder, setting enabled to false", e);
-				return false;
+	private final Runnable flushSubscriptions = new Runnable() {
+		public void run() {
+			List<String> add = new LinkedList<String>();
+			List<String> remove = new LinkedList<String>();
+
+			synchronized (pendingSubscriptions) {
+				subscriptionTimer = null;
+
+				for (Map.Entry<String, Boolean> entry : pendingSubscriptions.entrySet()) {
+					String uuid = entry.getKey();
+					if (entry.getValue()) {
+						if (!subscribed.contains(uuid))
+							add.add(uuid);
+					} else if (subscribed.contains(uuid)) {
+						remove.add(uuid);
+					}
+				}
+				pendingSubscriptions.clear();
 			}
 
-			return true;
-		} else if (HostDatabase.PORTFORWARD_REMOTE.equals(portForward.getType())) {
-			portForward.setEnabled(false);
+			if (closed || !connected)
+				return;
 
 			try {
-				connection.cancelRemotePortForwarding(portForward.getSourcePort());
+				if (!add.isEmpty()) {
+					outgoing.offer(loopWriter.subscribe(add));
+					subscribed.addAll(add);
+				}
+				if (!remove.isEmpty()) {
+					outgoing.offer(loopWriter.unsubscribe(remove));
+					subscribed.removeAll(remove);
+				}
 			} catch (IOException e) {
-				Log.e(TAG, "Could not stop remote port forwarding, setting enabled to false", e);
-				return false;
-			}
-
-			return true;
-		} else if (HostDatabase.PORTFORWARD_DYNAMIC5.equals(portForward.getType())) {
-			DynamicPortForwarder dpf = null;
-			dpf = (DynamicPortForwarder)portForward.getIdentifier();
-
-			if (!portForward.isEnabled() || dpf == null) {
-				Log.d(TAG, String.format("Could not disable %s; it appears to be not enabled or have no handler", portForward.getNickname()));
-				return false;
+				Log.d(TAG, "Could not send subscription changes", e);
 			}
-
-			portForward.setEnabled(false);
-
+		}
+	};
+
+	/* nothing came back for a sync; maybe the node doesn't know it */
+	private final Runnable syncFallback = new Runnable() {
+		public void run() {
+			Set<String> pending = syncPending;
+			syncPending = null;
+			if (pending == null || closed || !connected)
+				return;
+
+			pending.retainAll(subscribed);
+			if (pending.isEmpty())
+				return;
+
+			Log.d(TAG, "No replay after sync, subscribing again to " + pending.size() + " channels");
+			List<String> uuids = new LinkedList<String>(pending);
 			try {
-				dpf.close();
+				outgoing.offer(loopWriter.unsubscribe(uuids));
+				outgoing.offer(loopWriter.subscribe(uuids));
 			} catch (IOException e) {
-				Log.e(TAG, "Could not stop dynamic port forwarder, setting enabled to false", e);
-				return false;
+				Log.d(TAG, "Could not resubscribe", e);
 			}
-
-			return true;
-		} else {
-			// Unsupported type
-			Log.e(TAG, String.format("attempt to forward unknown type %s", portForward.getType()));
-			return false;
 		}
-		*/
-		return true;
+	};
+
+	/**
+	 * @return uuids of the channels the node is currently sending us
+	 */
+	public Set<String> getSubscribedChannels() {
+		return subscribed;
 	}
 
 	public int getDefaultPort() {
@@ -494,49 +783,138 @@ public class Transport {
 
 
 
-	public int read(byte[] buffer, int start, int len) throws IOException {
-		/* process all already read bytes */
-		int n = 0;
-
-		do {
-			//n = handler.negotiate(buffer, start);
-			if (n > 0)
-				return n;
-		} while (n == 0);
+	/**
+	 * Read whatever is currently available without blocking.
+	 * @return number of bytes read, possibly zero
+	 */
+	public int read(ByteBuffer dst) throws IOException {
+		SocketChannel socket = this.socket;
+		if (socket == null)
+			throw new IOException("Connection already closed.");
+
+		int n = socket.read(dst);
+		if (n < 0) {
+			forgetRejectedToken();
+			bridge.dispatchDisconnect(false);
+			throw new IOException("Remote end closed connection.");
+		}
+		return n;
+	}
 
-		while (n <= 0) {
-			do {
-				//n = handler.negotiate(buffer, start);
-				if (n > 0)
-					return n;
-			} while (n == 0);
-			n = is.read(buffer, start, len);
-			if (n < 0) {
-				bridge.dispatchDisconnect(false);
-				throw new IOException("Remote end closed connection.");
-			}
+	/**
+	 * Post a message to a channel. May block for a while if the peer has
+	 * stopped reading and the send queue is full; the writer is only held
+	 * while encoding, so other senders aren't stuck behind the wait.
+	 */
+	public void tweet(long channelId, String message) throws IOException {
+		if (!connected)
+			return;
 
-			//handler.inputfeed(buffer, start, n);
-			//n = handler.negotiate(buffer, start);
+		ByteBuffer encoded;
+		synchronized (writer) {
+			encoded = writer.tweet(channelId, message);
 		}
-		return n;
+		outgoing.offer(encoded);
 	}
 
+	/**
+	 * Queue raw data for the selector thread to send.
+	 */
 	public void write(byte[] buffer) throws IOException {
-		try {
-			if (os != null)
-				os.write(buffer);
-		} catch (SocketException e) {
-			bridge.dispatchDisconnect(false);
-		}
+		if (!connected)
+			return;
+
+		outgoing.offer(buffer, 0, buffer.length);
 	}
 
 	public void write(int c) throws IOException {
+		write(new byte[] { (byte) c });
+	}
+
+	/**
+	 * Called by the relay for every frame; the node only talks to us once it
+	 * has accepted our token.
+	 * @param message the parsed frame, or null if it was malformed
+	 */
+	void onFrameReceived(Message message) {
+		if (!authenticated) {
+			authenticated = true;
+			bridge.onAuthenticated();
+		}
+
+		if (syncPending != null && message != null
+				&& (message.matches(Message.OPERATION, SYNC) || message.matches(Message.TRIGGER, SYNC)
+						|| (message.has(Message.MESSAGE) && syncPending.contains(message.getChannelUuid())))) {
+			// the node does replay what we missed, no need to check again
+			syncPending = null;
+			syncTimer.cancel();
+			bridge.setSyncConfirmed();
+		}
+
+		if (heartbeat != null)
+			heartbeat.onFrame(message);
+	}
+
+	public void sendPing(long id) {
 		try {
-			if (os != null)
-				os.write(c);
-		} catch (SocketException e) {
-			bridge.dispatchDisconnect(false);
+			outgoing.offer(loopWriter.ping(id));
+		} catch (IOException e) {
+			// send queue is full, the missed beat will be noticed anyway
+			Log.d(TAG, "Could not queue heartbeat", e);
 		}
 	}
+
+	public void onDeadLink() {
+		Log.d(TAG, "Realtime connection stopped responding");
+		bridge.dispatchDisconnect(false);
+	}
+
+	/**
+	 * @return smoothed heartbeat round-trip time in milliseconds, or -1 if
+	 *         not known yet
+	 */
+	public long getSmoothedRtt() {
+		Heartbeat heartbeat = this.heartbeat;
+		if (heartbeat == null)
+			return -1;
+		return heartbeat.getSmoothedRtt();
+	}
+
+	/**
+	 * The node has no explicit "bad token" reply, it just hangs up. If that
+	 * happens before it ever spoke to us and we skipped the login, assume the
+	 * token went stale so the next attempt logs in properly.
+	 */
+	private void forgetRejectedToken() {
+		if (usingCachedToken && !authenticated) {
+			Log.d(TAG, "Dropping cached login token after early disconnect");
+			usingCachedToken = false;
+			manager.getTokenCache().invalidate(host);
+		}
+	}
+
+	public void onReadable() throws IOException {
+		if (relay != null)
+			relay.onReadable();
+	}
+
+	public void onWritable() throws IOException {
+		SocketChannel socket = this.socket;
+		if (socket == null)
+			return;
+
+		if (outgoing.drain(socket))
+			manager.getSelectorLoop().setInterest(socket, SelectionKey.OP_WRITE, false);
+	}
+
+	public void onError(IOException e) {
+		if (!connected) {
+			fail(e);
+			return;
+		}
+
+		Log.d(TAG, "IO Exception on realtime socket", e);
+		forgetRejectedToken();
+		bridge.dispatchDisconnect(false);
+	}
 }
@@ -0,0 +1,77 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.danopia.protonet.util;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Free list of equally sized heap buffers shared by the network code, so
+ * encoding and queueing outbound data does not allocate in steady state.
+ *
+ * Only buffers obtained from {@link #acquire()} should be released; anything
+ * of a different size is left for the garbage collector.
+ */
+public class BufferPool {
+	public static final int DEFAULT_BUFFER_SIZE = 4096;
+	public static final int DEFAULT_MAX_POOLED = 64;
+
+	private final int bufferSize;
+
+	private final ByteBuffer[] free;
+	private int count = 0;
+
+	public BufferPool() {
+		this(DEFAULT_BUFFER_SIZE, DEFAULT_MAX_POOLED);
+	}
+
+	public BufferPool(int bufferSize, int maxPooled) {
+		this.bufferSize = bufferSize;
+		this.free = new ByteBuffer[maxPooled];
+	}
+
+	/**
+	 * @return a cleared buffer of {@link #getBufferSize()} bytes
+	 */
+	public ByteBuffer acquire() {
+		synchronized (free) {
+			if (count > 0) {
+				ByteBuffer buffer = free[--count];
+				free[count] = null;
+				return buffer;
+			}
+		}
+
+		return ByteBuffer.allocate(bufferSize);
+	}
+
+	public void release(ByteBuffer buffer) {
+		if (buffer == null || buffer.capacity() != bufferSize)
+			return;
+
+		buffer.clear();
+
+		synchronized (free) {
+			if (count < free.length)
+				free[count++] = buffer;
+		}
+	}
+
+	public int getBufferSize() {
+		return bufferSize;
+	}
+}
@@ -0,0 +1,654 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.danopia.protonet.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import android.util.Log;
+
+/**
+ * Append-only history of one channel on disk, so scrollback outlives the
+ * heap, reconnects and service restarts.
+ *
+ * Records go into segment files of about {@link #SEGMENT_SIZE} bytes, named
+ * after the ordinal (position in the whole log) of their first record. Each
+ * record is a length, the message id, the time it was received and the
+ * UTF-8 text. Next to every segment is a sparse index holding the ordinal,
+ * id, time and file offset of a record every {@link #INDEX_INTERVAL} bytes,
+ * which is loaded into primitive arrays when the log is opened; a lookup
+ * binary searches it and then scans at most one interval of records.
+ *
+ * Appends only copy the record into a pending buffer under a short lock; a
+ * serial executor writes them out, so callers never wait on the disk.
+ * After each batch the executor publishes an immutable view of what has
+ * been written. Reads and lookups work from that view without taking the
+ * append lock, mapping segments read-only; the segment still being written
+ * is only mapped again when a read reaches past the part already mapped.
+ */
+public class ChannelLog {
+	private static final String TAG = "ConnectBot.ChannelLog";
+
+	public static final int SEGMENT_SIZE = 1024 * 1024;
+
+	public static final int INDEX_INTERVAL = 4096;
+
+	/* text length, message id, receive time */
+	private static final int RECORD_HEADER = 4 + 8 + 8;
+
+	/* ordinal, message id, receive time, offset */
+	private static final int INDEX_ENTRY = 8 + 8 + 8 + 4;
+
+	private static final String LOG_SUFFIX = ".log";
+	private static final String INDEX_SUFFIX = ".idx";
+
+	/*
+	 * One segment file. Sizes and index arrays are only changed by whoever
+	 * writes, i.e. the constructor and then the executor; index arrays are
+	 * only appended to, or replaced by bigger copies, so an Extent taken
+	 * earlier stays valid.
+	 */
+	private static class Segment {
+		final long base;
+		final File logFile;
+		final File indexFile;
+
+		/* bytes and records written out */
+		int size = 0;
+		int count = 0;
+
+		long[] ordinals = new long[16];
+		long[] ids = new long[16];
+		long[] times = new long[16];
+		int[] offsets = new int[16];
+		int entries = 0;
+
+		/* shared by readers, guarded by this segment */
+		private MappedByteBuffer map;
+
+		Segment(File dir, long base) {
+			this.base = base;
+			String name = String.format("%016x", base);
+			logFile = new File(dir, name + LOG_SUFFIX);
+			indexFile = new File(dir, name + INDEX_SUFFIX);
+		}
+
+		void addEntry(long ordinal, long id, long time, int offset) {
+			if (entries == ordinals.length) {
+				int grown = entries * 2;
+				ordinals = copyOf(ordinals, grown);
+				ids = copyOf(ids, grown);
+				times = copyOf(times, grown);
+				int[] o = new int[grown];
+				System.arraycopy(offsets, 0, o, 0, entries);
+				offsets = o;
+			}
+			ordinals[entries] = ordinal;
+			ids[entries] = id;
+			times[entries] = time;
+			offsets[entries] = offset;
+			entries++;
+		}
+
+		/*
+		 * Segment contents covering at least the first needed bytes, mapping
+		 * up to size if what is mapped so far is shorter. Both must already
+		 * be written out.
+		 */
+		synchronized ByteBuffer map(int needed, int size) throws IOException {
+			if (map == null || map.capacity() < needed) {
+				RandomAccessFile file = new RandomAccessFile(logFile, "r");
+				try {
+					map = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+				} finally {
+					file.close();
+				}
+			}
+			return map.duplicate();
+		}
+	}
+
+	/* a segment as of some publication; never changes */
+	private static final class Extent {
+		final Segment segment;
+		final long base;
+		final int size;
+		final int count;
+		final long[] ordinals;
+		final long[] ids;
+		final long[] times;
+		final int[] offsets;
+		final int entries;
+
+		Extent(Segment segment) {
+			this.segment = segment;
+			base = segment.base;
+			size = segment.size;
+			count = segment.count;
+			ordinals = segment.ordinals;
+			ids = segment.ids;
+			times = segment.times;
+			offsets = segment.offsets;
+			entries = segment.entries;
+		}
+
+		/* buffer reaching at least end, keeping the current one if it does */
+		ByteBuffer cover(ByteBuffer buf, int end) throws IOException {
+			if (buf != null && buf.capacity() >= end)
+				return buf;
+			return segment.map(end, size);
+		}
+	}
+
+	/* everything written out, as readers see it */
+	private static final class View {
+		final Extent[] extents;
+		final long written;
+
+		View(Extent[] extents, long written) {
+			this.extents = extents;
+			this.written = written;
+		}
+	}
+
+	private static long[] copyOf(long[] array, int length) {
+		long[] copy = new long[length];
+		System.arraycopy(array, 0, copy, 0, Math.min(array.length, length));
+		return copy;
+	}
+
+	private final File dir;
+	private final Executor executor;
+
+	private volatile View view = new View(new Extent[0], 0);
+
+	/* the append lock: guards the next four */
+	private long count = 0;
+	private long lastId = -1;
+	private ByteBuffer pending = ByteBuffer.allocate(1024);
+	private boolean flushScheduled = false;
+	private boolean closed = false;
+
+	/* only touched by the constructor, then by the executor */
+	private final List<Segment> segments = new ArrayList<Segment>();
+	private long written = 0;
+	private RandomAccessFile logOut;
+	private RandomAccessFile indexOut;
+	private int lastIndexed = 0;
+	private ByteBuffer spare = ByteBuffer.allocate(1024);
+
+	private final Runnable flush = new Runnable() {
+		public void run() {
+			try {
+				flush();
+			} catch (IOException e) {
+				Log.e(TAG, "Could not write history to " + dir, e);
+			}
+		}
+	};
+
+	/**
+	 * Open or create the log in this directory. Runs recovery on the newest
+	 * segment, dropping a record cut short by a crash. Does disk I/O, so keep
+	 * it off the UI and network threads.
+	 * @param executor runs the writes; must run tasks one at a time, like a
+	 *        {@link SerialExecutor}
+	 */
+	public ChannelLog(File dir, Executor executor) throws IOException {
+		this.dir = dir;
+		this.executor = executor;
+
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Could not create " + dir);
+
+		String[] names = dir.list();
+		Arrays.sort(names);
+		for (String name : names) {
+			if (!name.endsWith(LOG_SUFFIX))
+				continue;
+			try {
+				long base = Long.parseLong(name.substring(0, name.length() - LOG_SUFFIX.length()), 16);
+				segments.add(new Segment(dir, base));
+			} catch (NumberFormatException e) {
+				Log.w(TAG, "Ignoring stray file " + name);
+			}
+		}
+
+		for (int i = 0; i < segments.size(); i++) {
+			Segment segment = segments.get(i);
+			loadIndex(segment);
+			if (i + 1 < segments.size()) {
+				segment.size = (int) segment.logFile.length();
+				segment.count = (int) (segments.get(i + 1).base - segment.base);
+			} else {
+				recover(segment);
+			}
+		}
+
+		if (!segments.isEmpty()) {
+			Segment last = segments.get(segments.size() - 1);
+			count = written = last.base + last.count;
+			if (last.entries > 0)
+				lastIndexed = last.offsets[last.entries - 1];
+		}
+
+		publish();
+	}
+
+	private void loadIndex(Segment segment) throws IOException {
+		if (!segment.indexFile.exists())
+			return;
+
+		RandomAccessFile file = new RandomAccessFile(segment.indexFile, "r");
+		try {
+			int entries = (int) (file.length() / INDEX_ENTRY);
+			ByteBuffer buf = ByteBuffer.allocate(entries * INDEX_ENTRY);
+			file.getChannel().read(buf, 0);
+			buf.flip();
+			for (int i = 0; i < entries; i++)
+				segment.addEntry(buf.getLong(), buf.getLong(), buf.getLong(), buf.getInt());
+		} finally {
+			file.close();
+		}
+	}
+
+	/* find the end of the last complete record, counting from the last index entry */
+	private void recover(Segment segment) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(segment.logFile, "rw");
+		try {
+			int length = (int) file.length();
+
+			// index entries pointing past the end were written for lost records
+			while (segment.entries > 0 && segment.offsets[segment.entries - 1] >= length)
+				segment.entries--;
+
+			int offset = 0;
+			long ordinal = segment.base;
+			if (segment.entries > 0) {
+				offset = segment.offsets[segment.entries - 1];
+				ordinal = segment.ordinals[segment.entries - 1];
+			}
+
+			ByteBuffer buf = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+			while (offset + RECORD_HEADER <= length) {
+				int textLength = buf.getInt(offset);
+				if (textLength < 0 || offset + RECORD_HEADER + textLength > length)
+					break;
+				lastId = Math.max(lastId, buf.getLong(offset + 4));
+				offset += RECORD_HEADER + textLength;
+				ordinal++;
+			}
+
+			if (offset < length) {
+				Log.w(TAG, String.format("Dropping %d bytes of a partial record in %s",
+						length - offset, segment.logFile));
+				file.setLength(offset);
+			}
+
+			segment.size = offset;
+			segment.count = (int) (ordinal - segment.base);
+		} finally {
+			file.close();
+		}
+
+		// rewrite the index if it had entries for dropped records
+		if (segment.indexFile.length() != segment.entries * INDEX_ENTRY) {
+			RandomAccessFile index = new RandomAccessFile(segment.indexFile, "rw");
+			try {
+				index.setLength(segment.entries * INDEX_ENTRY);
+			} finally {
+				index.close();
+			}
+		}
+	}
+
+	/* constructor and executor only: let readers see what has been written */
+	private void publish() {
+		Extent[] extents = new Extent[segments.size()];
+		for (int i = 0; i < extents.length; i++)
+			extents[i] = new Extent(segments.get(i));
+		view = new View(extents, written);
+	}
+
+	/**
+	 * Queue a line to be written. Cheap enough for the network thread.
+	 * @param id message id, or -1 if the message had none
+	 * @return ordinal of the new record, or -1 if the log is closed or
+	 *         writing to it has failed
+	 */
+	public synchronized long append(long id, long time, CharSequence text) {
+		if (closed)
+			return -1;
+
+		// keep ids ascending so they can be searched
+		if (id < lastId)
+			id = lastId;
+		lastId = id;
+
+		int textLength = Utf8.encodedLength(text);
+		if (pending.remaining() < RECORD_HEADER + textLength) {
+			ByteBuffer bigger = ByteBuffer.allocate(Math.max(pending.capacity() * 2,
+					pending.position() + RECORD_HEADER + textLength));
+			pending.flip();
+			bigger.put(pending);
+			pending = bigger;
+		}
+
+		pending.putInt(textLength).putLong(id).putLong(time);
+		int end = Utf8.encode(text, pending.array(), pending.arrayOffset() + pending.position());
+		pending.position(end - pending.arrayOffset());
+
+		if (!flushScheduled) {
+			flushScheduled = true;
+			executor.execute(flush);
+		}
+
+		return count++;
+	}
+
+	/* executor only */
+	private void flush() throws IOException {
+		ByteBuffer data;
+		synchronized (this) {
+			flushScheduled = false;
+			if (pending.position() == 0)
+				return;
+
+			// swap buffers so appends can carry on while we write
+			data = pending;
+			spare.clear();
+			pending = spare;
+			spare = data;
+			data.flip();
+		}
+
+		try {
+			write(data);
+		} catch (IOException e) {
+			// ordinals handed out from here on would never match the disk
+			synchronized (this) {
+				closed = true;
+				pending.clear();
+				count = written;
+			}
+			publish();
+			try {
+				closeFiles();
+			} catch (IOException ignored) {
+			}
+			throw e;
+		}
+
+		publish();
+	}
+
+	/* executor only */
+	private void write(ByteBuffer data) throws IOException {
+		Segment segment = activeSegment();
+
+		while (data.hasRemaining()) {
+			final int start = data.position();
+			final int textLength = data.getInt(start);
+			final int recordLength = RECORD_HEADER + textLength;
+
+			if (segment.size > 0 && segment.size + recordLength > SEGMENT_SIZE)
+				segment = startSegment(written);
+
+			final int offset = segment.size;
+			logOut.write(data.array(), data.arrayOffset() + start, recordLength);
+			data.position(start + recordLength);
+
+			long id = data.getLong(start + 4);
+			long time = data.getLong(start + 12);
+			if (offset == 0 || offset - lastIndexed >= INDEX_INTERVAL) {
+				ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY);
+				entry.putLong(written).putLong(id).putLong(time).putInt(offset);
+				indexOut.write(entry.array());
+				segment.addEntry(written, id, time, offset);
+				lastIndexed = offset;
+			}
+
+			segment.size = offset + recordLength;
+			segment.count++;
+			written++;
+		}
+	}
+
+	/* executor only */
+	private Segment activeSegment() throws IOException {
+		if (segments.isEmpty())
+			return startSegment(written);
+
+		Segment segment = segments.get(segments.size() - 1);
+		if (logOut == null) {
+			logOut = new RandomAccessFile(segment.logFile, "rw");
+			logOut.seek(segment.size);
+			indexOut = new RandomAccessFile(segment.indexFile, "rw");
+			indexOut.seek(indexOut.length());
+		}
+		return segment;
+	}
+
+	/* executor only */
+	private Segment startSegment(long base) throws IOException {
+		closeFiles();
+
+		Segment segment = new Segment(dir, base);
+		logOut = new RandomAccessFile(segment.logFile, "rw");
+		indexOut = new RandomAccessFile(segment.indexFile, "rw");
+		lastIndexed = 0;
+
+		// publish what the old segment ended up with before moving on
+		publish();
+		segments.add(segment);
+		return segment;
+	}
+
+	private void closeFiles() throws IOException {
+		if (logOut != null) {
+			logOut.close();
+			logOut = null;
+		}
+		if (indexOut != null) {
+			indexOut.close();
+			indexOut = null;
+		}
+	}
+
+	/**
+	 * @return number of records appended so far, i.e. the next ordinal
+	 */
+	public synchronized long getCount() {
+		return count;
+	}
+
+	/**
+	 * @return highest message id appended, or -1
+	 */
+	public synchronized long getLastId() {
+		return lastId;
+	}
+
+	/**
+	 * @return number of records written out, which is as far as
+	 *         {@link #read} and the lookups can see
+	 */
+	public long getWritten() {
+		return view.written;
+	}
+
+	/**
+	 * Read written-out records in order. Does not hold up appends.
+	 * @param from ordinal of the first record
+	 * @param max most records to read
+	 * @param out receives the text of each record
+	 * @return ordinal after the last record read
+	 */
+	public long read(long from, int max, List<String> out) throws IOException {
+		final View view = this.view;
+		long ordinal = Math.max(from, 0);
+		final long end = Math.min(view.written, ordinal + max);
+
+		int s = extentFor(view.extents, ordinal);
+		while (s >= 0 && s < view.extents.length && ordinal < end) {
+			Extent extent = view.extents[s];
+			ByteBuffer buf = null;
+
+			// start from the nearest index entry, then skip ahead
+			int e = Arrays.binarySearch(extent.ordinals, 0, extent.entries, ordinal);
+			if (e < 0)
+				e = -e - 2;
+			int offset = (e >= 0) ? extent.offsets[e] : 0;
+			long at = (e >= 0) ? extent.ordinals[e] : extent.base;
+
+			while (at < ordinal) {
+				buf = extent.cover(buf, offset + RECORD_HEADER);
+				offset += RECORD_HEADER + buf.getInt(offset);
+				at++;
+			}
+
+			final long extentEnd = extent.base + extent.count;
+			while (ordinal < end && ordinal < extentEnd) {
+				buf = extent.cover(buf, offset + RECORD_HEADER);
+				int textLength = buf.getInt(offset);
+				buf = extent.cover(buf, offset + RECORD_HEADER + textLength);
+				out.add(decode(buf, offset + RECORD_HEADER, textLength));
+				offset += RECORD_HEADER + textLength;
+				ordinal++;
+			}
+
+			s++;
+		}
+
+		return ordinal;
+	}
+
+	private static String decode(ByteBuffer buf, int offset, int length) {
+		byte[] bytes = new byte[length];
+		ByteBuffer view = buf.duplicate();
+		view.position(offset);
+		view.get(bytes);
+		return Utf8.toString(bytes, 0, length);
+	}
+
+	/* index of the extent holding this ordinal, or -1 */
+	private static int extentFor(Extent[] extents, long ordinal) {
+		int lo = 0, hi = extents.length - 1, found = -1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			if (extents[mid].base <= ordinal) {
+				found = mid;
+				lo = mid + 1;
+			} else {
+				hi = mid - 1;
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * @return ordinal of the first written record with an id of at least
+	 *         this, or the number of written records if there is none
+	 */
+	public long findById(long id) throws IOException {
+		return find(id, false);
+	}
+
+	/**
+	 * @return ordinal of the first written record received at or after this
+	 *         time, or the number of written records if there is none
+	 */
+	public long findByTime(long time) throws IOException {
+		return find(time, true);
+	}
+
+	private long find(long key, boolean byTime) throws IOException {
+		final View view = this.view;
+		final Extent[] extents = view.extents;
+
+		// last extent whose first indexed key is below the target
+		int s = 0;
+		for (int i = 0; i < extents.length; i++) {
+			Extent extent = extents[i];
+			if (extent.entries == 0)
+				continue;
+			long first = byTime ? extent.times[0] : extent.ids[0];
+			if (first >= key)
+				break;
+			s = i;
+		}
+
+		for (; s < extents.length; s++) {
+			Extent extent = extents[s];
+			if (extent.count == 0)
+				continue;
+
+			long[] keys = byTime ? extent.times : extent.ids;
+			int e = 0;
+			while (e + 1 < extent.entries && keys[e + 1] < key)
+				e++;
+
+			ByteBuffer buf = null;
+			int offset = (extent.entries > 0) ? extent.offsets[e] : 0;
+			long ordinal = (extent.entries > 0) ? extent.ordinals[e] : extent.base;
+			final long extentEnd = extent.base + extent.count;
+
+			while (ordinal < extentEnd) {
+				buf = extent.cover(buf, offset + RECORD_HEADER);
+				long value = buf.getLong(offset + (byTime ? 12 : 4));
+				if (value >= key)
+					return ordinal;
+				offset += RECORD_HEADER + buf.getInt(offset);
+				ordinal++;
+			}
+		}
+
+		return view.written;
+	}
+
+	/**
+	 * Write out what is pending and close the files. Later appends are
+	 * ignored.
+	 */
+	public void close() {
+		synchronized (this) {
+			if (closed)
+				return;
+			closed = true;
+		}
+
+		executor.execute(new Runnable() {
+			public void run() {
+				try {
+					flush();
+					closeFiles();
+				} catch (IOException e) {
+					Log.e(TAG, "Could not close history in " + dir, e);
+				}
+			}
+		});
+	}
+}
@@ -0,0 +1,158 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.danopia.protonet.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers which message ids a channel has already seen, in bounded space,
+ * so ones replayed after a reconnect can be dropped before they are stored.
+ *
+ * Ids above the highest one seen are always new. Anything else is checked
+ * against a small exact LRU of recent ids and then a rolling bloom filter
+ * covering a longer stretch of history: two generations of bits, the older
+ * one thrown away whenever the newer one fills up. Ids older than anything
+ * the filter still covers are taken to be replays. A bloom false positive
+ * can only drop a message that arrives late and out of order, and then
+ * rarely.
+ *
+ * Not thread safe; used from the selector thread.
+ */
+public class DuplicateFilter {
+	private static final int RECENT = 256;
+
+	/* ids per generation; with 16 bits each and 4 probes, ~0.25% false positives */
+	private static final int GENERATION = 1024;
+	private static final int BITS = GENERATION * 16;
+	private static final int PROBES = 4;
+
+	private final Map<Long, Boolean> recent = new LinkedHashMap<Long, Boolean>(RECENT, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Long, Boolean> eldest) {
+			return size() > RECENT;
+		}
+	};
+
+	private long[] current = new long[BITS / 64];
+	private long[] previous = new long[BITS / 64];
+	private int added = 0;
+
+	/* lowest id in each generation */
+	private long currentFloor = Long.MAX_VALUE;
+	private long previousFloor = Long.MAX_VALUE;
+
+	private long highest;
+
+	/**
+	 * @param highest highest id seen before this filter existed, e.g. from
+	 *        history on disk, or -1
+	 */
+	public DuplicateFilter(long highest) {
+		this.highest = highest;
+	}
+
+	/**
+	 * Record an id, unless it was seen before.
+	 * @return true if it was new
+	 */
+	public boolean add(long id) {
+		if (id > highest) {
+			highest = id;
+			remember(id);
+			return true;
+		}
+
+		if (recent.get(id) != null)
+			return false;
+
+		// older than anything we still have bits for
+		if (id < Math.min(currentFloor, previousFloor))
+			return false;
+
+		if (mightContain(current, id) || mightContain(previous, id))
+			return false;
+
+		remember(id);
+		return true;
+	}
+
+	/**
+	 * Take every id up to this one as seen, e.g. once the history on disk
+	 * turns out to go further than the filter was created with.
+	 */
+	public void raise(long id) {
+		if (id > highest)
+			highest = id;
+	}
+
+	/**
+	 * @return the highest id seen
+	 */
+	public long getHighest() {
+		return highest;
+	}
+
+	private void remember(long id) {
+		recent.put(id, Boolean.TRUE);
+
+		if (added == GENERATION) {
+			long[] bits = previous;
+			previous = current;
+			current = bits;
+			for (int i = 0; i < current.length; i++)
+				current[i] = 0;
+			previousFloor = currentFloor;
+			currentFloor = Long.MAX_VALUE;
+			added = 0;
+		}
+
+		long hash = mix(id);
+		for (int i = 0; i < PROBES; i++) {
+			int bit = probe(hash, i);
+			current[bit >>> 6] |= 1L << bit;
+		}
+		currentFloor = Math.min(currentFloor, id);
+		added++;
+	}
+
+	private static boolean mightContain(long[] bits, long id) {
+		long hash = mix(id);
+		for (int i = 0; i < PROBES; i++) {
+			int bit = probe(hash, i);
+			if ((bits[bit >>> 6] & (1L << bit)) == 0)
+				return false;
+		}
+		return true;
+	}
+
+	/* double hashing from the two halves of one well-mixed word */
+	private static int probe(long hash, int i) {
+		int h = (int) hash + i * (int) (hash >>> 32);
+		return (h & 0x7fffffff) % BITS;
+	}
+
+	private static long mix(long x) {
+		x = (x ^ (x >>> 33)) * 0xff51afd7ed558ccdL;
+		x = (x ^ (x >>> 33)) * 0xc4ceb9fe1a85ec53L;
+		return x ^ (x >>> 33);
+	}
+}
@@ -0,0 +1,368 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.danopia.protonet.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-capacity history of lines. Appending is O(1); once full, every new
+ * line evicts the oldest one, so memory stays bounded however long a session
+ * runs.
+ *
+ * Lines are not kept as Strings: their UTF-8 bytes are appended to large
+ * chunked arenas, and a primitive index records where each line lives. For
+ * mostly-ASCII chat that is about half the memory of a String per line and
+ * a handful of objects per buffer instead of several per line. Lines are
+ * decoded again only when read for display. A chunk is dropped as a whole
+ * once every line in it has been evicted.
+ *
+ * Every line gets a sequence number, counting up from zero for the life of
+ * the buffer. There must be a single writer thread: only it may call
+ * {@link #add(CharSequence)}, {@link #clear()} and {@link #setCapacity(int)}.
+ * Readers on any other thread take a {@link Snapshot} without locking; a
+ * line the writer overwrites while it is being read is reported as gone
+ * rather than returned torn or out of order.
+ */
+public class HistoryBuffer {
+	/* arenas start small so quiet channels stay cheap, and double up to this */
+	private static final int MIN_CHUNK_SIZE = 1024;
+	private static final int MAX_CHUNK_SIZE = 64 * 1024;
+
+	/*
+	 * On top of the live lines, up to about two arenas are retained: the
+	 * oldest one, partly evicted, and the unused end of the newest. Arenas
+	 * are kept to this fraction of what the buffer holds when full, so that
+	 * overhead stays around a quarter of the live data.
+	 */
+	private static final int CHUNKS_PER_SPAN = 8;
+	private static final int SMALLEST_CHUNK_SIZE = 256;
+
+	/*
+	 * Index slots plus the first sequence number they are valid from. There
+	 * is one slot more than the capacity: the one the writer is filling next.
+	 *
+	 * Each slot is a seqlock of three longs: the sequence number of the line
+	 * it holds (or WRITING), the line's chunk id and offset, and its length.
+	 * Java has no standalone fences on our platforms, so the usual seqlock
+	 * over plain fields isn't safe: plain reads may be reordered after the
+	 * volatile re-check that is meant to validate them. Here every access
+	 * goes through the AtomicLongArray and is volatile, so all of them fall
+	 * in one order consistent with each thread's program order.
+	 *
+	 * The writer sets the stamp to WRITING, then the location, then the new
+	 * stamp. A reader reads the stamp, the location, and the stamp again,
+	 * and trusts the location only if both stamps are the line it wants. If
+	 * its location read saw any part of a later write, the WRITING store
+	 * that came before it is also before the second stamp read, which then
+	 * can't match. The arena bytes are written before the first stamp
+	 * store, so a matching stamp read also makes them visible, and they are
+	 * never modified afterwards.
+	 */
+	private static final class Ring {
+		static final long WRITING = -1;
+
+		final AtomicLongArray slots;
+		final long floor;
+
+		Ring(int slots, long floor) {
+			this.slots = new AtomicLongArray(slots * 3);
+			for (int i = 0; i < slots; i++)
+				this.slots.set(i * 3, WRITING);
+			this.floor = floor;
+		}
+
+		int size() {
+			return slots.length() / 3;
+		}
+
+		/* writer only */
+		void put(long seq, int chunkId, int offset, int length) {
+			final int i = (int) (seq % size()) * 3;
+			slots.set(i, WRITING);
+			slots.set(i + 1, ((long) chunkId << 32) | (offset & 0xffffffffL));
+			slots.set(i + 2, length);
+			slots.set(i, seq);
+		}
+
+		/* packed chunk id and offset of a line, or -1 if the slot doesn't hold it */
+		long location(long seq) {
+			final int i = (int) (seq % size()) * 3;
+			if (slots.get(i) != seq)
+				return -1;
+			final long location = slots.get(i + 1);
+			if (slots.get(i) != seq)
+				return -1;
+			return location;
+		}
+
+		/* length of a line, or -1 if the slot doesn't hold it */
+		int length(long seq) {
+			final int i = (int) (seq % size()) * 3;
+			if (slots.get(i) != seq)
+				return -1;
+			final long length = slots.get(i + 2);
+			if (slots.get(i) != seq)
+				return -1;
+			return (int) length;
+		}
+
+		/* writer only: nothing else changes the slot meanwhile */
+		int chunkId(long seq) {
+			return (int) (slots.get((int) (seq % size()) * 3 + 1) >>> 32);
+		}
+	}
+
+	/*
+	 * Arenas still referenced by some line; table[i] has id base + i. Chunk
+	 * contents are never changed once a line is in them, and the table is
+	 * replaced rather than modified, so readers need no locking.
+	 */
+	private static final class Chunks {
+		final byte[][] table;
+		final int base;
+
+		Chunks(byte[][] table, int base) {
+			this.table = table;
+			this.base = base;
+		}
+	}
+
+	private volatile Ring ring;
+
+	private volatile Chunks chunks = new Chunks(new byte[0][], 0);
+
+	/* sequence number of the next line; written last, so it publishes it */
+	private volatile long published = 0;
+
+	/* writer state: next sequence number, and the arena being filled */
+	private long next = 0;
+	private byte[] current = null;
+	private int currentId = -1;
+	private int currentPos = 0;
+
+	/* bytes ever added, for the average line length */
+	private long bytesAdded = 0;
+
+	/**
+	 * Lines as they were when {@link HistoryBuffer#snapshot()} was called.
+	 */
+	public final class Snapshot {
+		private final Ring ring;
+		private final Chunks chunks;
+		private final long first;
+		private final long end;
+
+		private Snapshot(Ring ring, Chunks chunks, long first, long end) {
+			this.ring = ring;
+			this.chunks = chunks;
+			this.first = first;
+			this.end = end;
+		}
+
+		/**
+		 * @return sequence number of the oldest line in the snapshot
+		 */
+		public long getFirst() {
+			return first;
+		}
+
+		/**
+		 * @return sequence number one past the newest line in the snapshot
+		 */
+		public long getEnd() {
+			return end;
+		}
+
+		public int size() {
+			return (int) (end - first);
+		}
+
+		/**
+		 * @return the line, or null if it has been evicted since the
+		 *         snapshot was taken
+		 */
+		public String get(long seq) {
+			if (seq < first || seq >= end)
+				throw new IndexOutOfBoundsException("Line " + seq + " not in " + first + ".." + end);
+
+			// -1 if the writer has lapped us, or is about to, while we read;
+			// a ring holds each sequence number at most once, so two matching
+			// reads are of the same line
+			final int length = ring.length(seq);
+			final long location = ring.location(seq);
+			if (length < 0 || location < 0)
+				return null;
+
+			final int chunkId = (int) (location >>> 32);
+			final int offset = (int) location;
+
+			final int index = chunkId - chunks.base;
+			if (index < 0 || index >= chunks.table.length)
+				return null;
+
+			final byte[] chunk = chunks.table[index];
+			if (offset + length > chunk.length)
+				return null;
+
+			return Utf8.toString(chunk, offset, length);
+		}
+	}
+
+	public HistoryBuffer(int capacity) {
+		ring = new Ring(Math.max(1, capacity) + 1, 0);
+	}
+
+	/**
+	 * Writer only.
+	 */
+	public void add(CharSequence line) {
+		final int length = Utf8.encodedLength(line);
+		bytesAdded += length;
+
+		if (current == null || currentPos + length > current.length)
+			newChunk(length);
+
+		final int offset = currentPos;
+		currentPos = Utf8.encode(line, current, offset);
+
+		ring.put(next, currentId, offset, length);
+
+		published = ++next;
+
+		trimChunks();
+	}
+
+	private void newChunk(int needed) {
+		int size = (current == null) ? MIN_CHUNK_SIZE : Math.min(current.length * 2, MAX_CHUNK_SIZE);
+
+		// stop growing once arenas are big enough for how much we keep
+		final long average = bytesAdded / (next + 1) + 1;
+		final long span = average * getCapacity();
+		size = (int) Math.min(size, Math.max(SMALLEST_CHUNK_SIZE, span / CHUNKS_PER_SPAN));
+
+		current = new byte[Math.max(size, needed)];
+		currentId++;
+		currentPos = 0;
+
+		// published before any line points into it
+		final Chunks old = chunks;
+		byte[][] table = new byte[currentId - old.base + 1][];
+		System.arraycopy(old.table, 0, table, 0, old.table.length);
+		table[table.length - 1] = current;
+		chunks = new Chunks(table, old.base);
+	}
+
+	/* drop arenas older than the one holding the oldest line we keep */
+	private void trimChunks() {
+		final Ring r = ring;
+		final long oldest = Math.max(r.floor, next - (r.size() - 1));
+		final int keepFrom = (oldest < next) ? r.chunkId(oldest) : currentId;
+
+		final Chunks old = chunks;
+		if (keepFrom <= old.base)
+			return;
+
+		byte[][] table = new byte[old.table.length - (keepFrom - old.base)][];
+		System.arraycopy(old.table, keepFrom - old.base, table, 0, table.length);
+		chunks = new Chunks(table, keepFrom);
+	}
+
+	/**
+	 * Take a consistent view of the lines currently kept. Safe from any
+	 * thread.
+	 */
+	public Snapshot snapshot() {
+		Chunks c;
+		Ring r;
+		long end;
+		do {
+			c = chunks;
+			r = ring;
+			end = published;
+		} while (c != chunks || r != ring);
+
+		long first = Math.max(r.floor, end - (r.size() - 1));
+		return new Snapshot(r, c, Math.max(0, first), end);
+	}
+
+	/**
+	 * @return sequence number the next line will get
+	 */
+	public long getSequence() {
+		return published;
+	}
+
+	/**
+	 * @return number of lines currently kept
+	 */
+	public int size() {
+		return snapshot().size();
+	}
+
+	/**
+	 * @param index 0 for the oldest line kept
+	 * @return the line, or null if it was evicted meanwhile
+	 */
+	public String get(int index) {
+		Snapshot snapshot = snapshot();
+		return snapshot.get(snapshot.getFirst() + index);
+	}
+
+	public int getCapacity() {
+		return ring.size() - 1;
+	}
+
+	/**
+	 * @return bytes of arena memory currently held, live lines and slack
+	 */
+	public long getRetainedBytes() {
+		long bytes = 0;
+		for (byte[] chunk : chunks.table)
+			bytes += chunk.length;
+		return bytes;
+	}
+
+	/**
+	 * Change how many lines are kept. Shrinking drops the oldest lines.
+	 * Writer only.
+	 */
+	public void setCapacity(int capacity) {
+		capacity = Math.max(1, capacity);
+		final Ring old = ring;
+		if (capacity == old.size() - 1)
+			return;
+
+		long first = Math.max(old.floor, Math.max(0, next - Math.min(old.size() - 1, capacity)));
+		Ring resized = new Ring(capacity + 1, first);
+		for (long seq = first; seq < next; seq++) {
+			long location = old.location(seq);
+			resized.put(seq, (int) (location >>> 32), (int) location, old.length(seq));
+		}
+
+		ring = resized;
+		trimChunks();
+	}
+
+	/**
+	 * Drop every line. Sequence numbers keep counting. Writer only.
+	 */
+	public void clear() {
+		ring = new Ring(ring.size(), next);
+		trimChunks();
+	}
+}
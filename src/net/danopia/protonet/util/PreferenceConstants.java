@@ -68,6 +68,10 @@ public class PreferenceConstants {
 
 	public static final String CONNECTION_PERSIST = "connPersist";
 
+	public static final String REMEMBER_LOGIN = "rememberLogin";
+
+	public static final String HEARTBEAT = "heartbeat";
+
 	/* Backup identifiers */
 	public static final String BACKUP_PREF_KEY = "prefs";
 }
@@ -0,0 +1,302 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.danopia.protonet.util;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Inverted index over lines of text, built up as lines arrive. Each line is
+ * a document identified by a number that only ever goes up, so every posting
+ * list is already sorted and adding a line only appends to a few primitive
+ * arrays. Tokens are runs of letters and digits, lowercased.
+ *
+ * Searching matches every query word as a prefix, so "prot" finds
+ * "protonet", and returns documents containing all of them, newest first.
+ * Cost depends on how many documents match, not how many there are.
+ *
+ * All methods are synchronized; a search holds the lock only while it
+ * collects posting lists.
+ */
+public class SearchIndex {
+	/* longer runs are truncated; nobody types that much of a word to find it */
+	private static final int MAX_TOKEN_LENGTH = 32;
+
+	private static final int MIN_POSTINGS = 4;
+
+	private static final class Postings {
+		int[] docs = new int[MIN_POSTINGS];
+		int size;
+
+		void add(int doc) {
+			// the same word twice in one line
+			if (size > 0 && docs[size - 1] == doc)
+				return;
+			if (size == docs.length)
+				docs = copyOf(docs, size * 2);
+			docs[size++] = doc;
+		}
+
+		/* drop documents below this, returning whether any are left */
+		boolean trim(int floor) {
+			int from = 0;
+			while (from < size && docs[from] < floor)
+				from++;
+			if (from == 0)
+				return true;
+
+			size -= from;
+			System.arraycopy(docs, from, docs, 0, size);
+			if (size < docs.length / 4 && docs.length > MIN_POSTINGS)
+				docs = copyOf(docs, Math.max(MIN_POSTINGS, size * 2));
+			return size > 0;
+		}
+	}
+
+	private final TreeMap<String, Postings> tokens = new TreeMap<String, Postings>();
+
+	private final StringBuilder token = new StringBuilder(MAX_TOKEN_LENGTH);
+
+	private int last = -1;
+
+	/* documents below this were trimmed */
+	private int floor = Integer.MIN_VALUE;
+
+	/**
+	 * Index a line. Document numbers must be added in increasing order.
+	 */
+	public synchronized void add(int doc, CharSequence text) {
+		if (doc <= last)
+			throw new IllegalArgumentException("Document " + doc + " is not after " + last);
+		last = doc;
+
+		final int length = text.length();
+		for (int i = 0; i <= length; i++) {
+			char c = (i < length) ? text.charAt(i) : ' ';
+			if (Character.isLetterOrDigit(c)) {
+				if (token.length() < MAX_TOKEN_LENGTH)
+					token.append(Character.toLowerCase(c));
+				continue;
+			}
+
+			if (token.length() == 0)
+				continue;
+
+			String key = token.toString();
+			token.setLength(0);
+
+			Postings postings = tokens.get(key);
+			if (postings == null) {
+				postings = new Postings();
+				tokens.put(key, postings);
+			}
+			postings.add(doc);
+		}
+	}
+
+	/**
+	 * @return the highest document added, or -1
+	 */
+	public synchronized int getLast() {
+		return last;
+	}
+
+	/**
+	 * Forget documents below this one, e.g. once they are gone from a
+	 * bounded history.
+	 */
+	public synchronized void trim(int floor) {
+		if (floor > this.floor)
+			this.floor = floor;
+
+		Iterator<Postings> it = tokens.values().iterator();
+		while (it.hasNext()) {
+			if (!it.next().trim(floor))
+				it.remove();
+		}
+	}
+
+	/**
+	 * Take over everything indexed by another index whose documents all come
+	 * before ours. Lets old history be indexed off to the side while new
+	 * lines keep arriving here. Documents below what this index has been
+	 * trimmed to are left out.
+	 */
+	public void prepend(SearchIndex older) {
+		synchronized (older) {
+			synchronized (this) {
+				if (older.last < 0)
+					return;
+
+				for (Map.Entry<String, Postings> entry : older.tokens.entrySet()) {
+					Postings before = entry.getValue();
+					if (!before.trim(floor))
+						continue;
+
+					Postings after = tokens.get(entry.getKey());
+
+					if (after == null) {
+						tokens.put(entry.getKey(), before);
+						continue;
+					}
+
+					int start = 0;
+					while (start < after.size && after.docs[start] <= older.last)
+						start++;
+
+					int[] docs = new int[before.size + after.size - start];
+					System.arraycopy(before.docs, 0, docs, 0, before.size);
+					System.arraycopy(after.docs, start, docs, before.size, after.size - start);
+					after.docs = docs;
+					after.size = docs.length;
+				}
+
+				if (last < older.last)
+					last = older.last;
+				older.tokens.clear();
+			}
+		}
+	}
+
+	/**
+	 * @param query words to look for, each matched as a prefix
+	 * @param max most documents to return
+	 * @return documents matching every word, newest first
+	 */
+	public int[] search(String query, int max) {
+		List<String> words = split(query);
+		if (words.isEmpty() || max <= 0)
+			return new int[0];
+
+		// start from the rarest word so the intersection shrinks fastest
+		List<int[]> matches = new ArrayList<int[]>(words.size());
+		for (String word : words) {
+			int[] docs = match(word);
+			if (docs.length == 0)
+				return docs;
+			matches.add(docs);
+		}
+
+		int[] result = null;
+		while (!matches.isEmpty()) {
+			int smallest = 0;
+			for (int i = 1; i < matches.size(); i++) {
+				if (matches.get(i).length < matches.get(smallest).length)
+					smallest = i;
+			}
+			int[] docs = matches.remove(smallest);
+			result = (result == null) ? docs : intersect(result, docs);
+		}
+
+		int count = Math.min(max, result.length);
+		int[] newest = new int[count];
+		for (int i = 0; i < count; i++)
+			newest[i] = result[result.length - 1 - i];
+		return newest;
+	}
+
+	/* sorted, distinct documents with a token starting with this prefix */
+	private synchronized int[] match(String prefix) {
+		SortedMap<String, Postings> range = tokens.subMap(prefix, prefix + Character.MAX_VALUE);
+
+		if (range.size() == 1) {
+			Postings postings = range.values().iterator().next();
+			return copyOf(postings.docs, postings.size);
+		}
+
+		int low = Integer.MAX_VALUE, high = -1;
+		for (Postings postings : range.values()) {
+			low = Math.min(low, postings.docs[0]);
+			high = Math.max(high, postings.docs[postings.size - 1]);
+		}
+		if (high < 0)
+			return new int[0];
+
+		// short words match many tokens; merging through a bitset beats sorting
+		long[] bits = new long[((high - low) >> 6) + 1];
+		int total = 0;
+		for (Postings postings : range.values()) {
+			for (int i = 0; i < postings.size; i++) {
+				int bit = postings.docs[i] - low;
+				long mask = 1L << bit;
+				if ((bits[bit >> 6] & mask) == 0) {
+					bits[bit >> 6] |= mask;
+					total++;
+				}
+			}
+		}
+
+		int[] docs = new int[total];
+		int n = 0;
+		for (int w = 0; w < bits.length; w++) {
+			long word = bits[w];
+			while (word != 0) {
+				int bit = Long.numberOfTrailingZeros(word);
+				docs[n++] = low + (w << 6) + bit;
+				word &= word - 1;
+			}
+		}
+		return docs;
+	}
+
+	private static int[] intersect(int[] a, int[] b) {
+		int[] out = new int[Math.min(a.length, b.length)];
+		int i = 0, j = 0, n = 0;
+		while (i < a.length && j < b.length) {
+			if (a[i] < b[j])
+				i++;
+			else if (a[i] > b[j])
+				j++;
+			else {
+				out[n++] = a[i];
+				i++;
+				j++;
+			}
+		}
+		return copyOf(out, n);
+	}
+
+	/* Arrays.copyOf is newer than the platforms we run on */
+	private static int[] copyOf(int[] array, int length) {
+		int[] copy = new int[length];
+		System.arraycopy(array, 0, copy, 0, Math.min(length, array.length));
+		return copy;
+	}
+
+	private static List<String> split(String query) {
+		List<String> words = new ArrayList<String>();
+		StringBuilder word = new StringBuilder();
+		final int length = query.length();
+		for (int i = 0; i <= length; i++) {
+			char c = (i < length) ? query.charAt(i) : ' ';
+			if (Character.isLetterOrDigit(c)) {
+				if (word.length() < MAX_TOKEN_LENGTH)
+					word.append(Character.toLowerCase(c));
+			} else if (word.length() > 0) {
+				words.add(word.toString());
+				word.setLength(0);
+			}
+		}
+		return words;
+	}
+}
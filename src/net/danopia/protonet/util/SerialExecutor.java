@@ -0,0 +1,85 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.danopia.protonet.util;
+
+import java.util.LinkedList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Runs tasks one at a time, in submission order, on a shared executor. Lets
+ * every connection have its own ordered queue without owning a thread.
+ *
+ * Once the shared executor has been shut down and rejects tasks, the queue
+ * is run on the submitting thread instead, so work queued at shutdown, like
+ * the last history writes, is not dropped.
+ */
+public class SerialExecutor implements Executor {
+	private final LinkedList<Runnable> tasks = new LinkedList<Runnable>();
+	private final Executor executor;
+
+	private Runnable active = null;
+
+	public SerialExecutor(Executor executor) {
+		this.executor = executor;
+	}
+
+	public void execute(final Runnable task) {
+		Runnable next;
+		synchronized (this) {
+			tasks.add(new Runnable() {
+				public void run() {
+					try {
+						task.run();
+					} finally {
+						scheduleNext();
+					}
+				}
+			});
+
+			if (active != null)
+				return;
+			active = next = tasks.poll();
+		}
+		submit(next);
+	}
+
+	private void scheduleNext() {
+		Runnable next;
+		synchronized (this) {
+			active = next = tasks.poll();
+		}
+		if (next != null)
+			submit(next);
+	}
+
+	private void submit(Runnable next) {
+		try {
+			executor.execute(next);
+		} catch (RejectedExecutionException e) {
+			next.run();
+		}
+	}
+
+	/**
+	 * Drop every task that has not started yet.
+	 */
+	public synchronized void clear() {
+		tasks.clear();
+	}
+}
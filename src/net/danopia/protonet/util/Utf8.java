@@ -0,0 +1,159 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.danopia.protonet.util;
+
+/**
+ * Minimal UTF-8 codec working on plain arrays, so the network path can turn
+ * bytes into text without going through a CharsetDecoder or an intermediate
+ * byte[] copy, and history can be kept as bytes. Malformed input decodes to
+ * U+FFFD.
+ */
+public final class Utf8 {
+	public static final char REPLACEMENT = '\ufffd';
+
+	private Utf8() {
+	}
+
+	/**
+	 * Decode {@code len} bytes into {@code dst}, which must have room for at
+	 * least {@code len} chars.
+	 * @return number of chars written
+	 */
+	public static int decode(byte[] src, int off, int len, char[] dst, int dstOff) {
+		final int end = off + len;
+		int d = dstOff;
+		int i = off;
+
+		while (i < end) {
+			int b = src[i++];
+
+			if (b >= 0) {
+				dst[d++] = (char) b;
+				continue;
+			}
+
+			int need;
+			int cp;
+			if ((b & 0xe0) == 0xc0) {
+				need = 1;
+				cp = b & 0x1f;
+			} else if ((b & 0xf0) == 0xe0) {
+				need = 2;
+				cp = b & 0x0f;
+			} else if ((b & 0xf8) == 0xf0) {
+				need = 3;
+				cp = b & 0x07;
+			} else {
+				dst[d++] = REPLACEMENT;
+				continue;
+			}
+
+			if (i + need > end) {
+				dst[d++] = REPLACEMENT;
+				break;
+			}
+
+			boolean valid = true;
+			for (int k = 0; k < need; k++) {
+				int c = src[i];
+				if ((c & 0xc0) != 0x80) {
+					valid = false;
+					break;
+				}
+				cp = (cp << 6) | (c & 0x3f);
+				i++;
+			}
+
+			if (!valid) {
+				dst[d++] = REPLACEMENT;
+			} else if (cp >= 0x10000) {
+				cp -= 0x10000;
+				dst[d++] = (char) (0xd800 | (cp >> 10));
+				dst[d++] = (char) (0xdc00 | (cp & 0x3ff));
+			} else {
+				dst[d++] = (char) cp;
+			}
+		}
+
+		return d - dstOff;
+	}
+
+	/**
+	 * @return number of bytes {@link #encode(CharSequence, byte[], int)}
+	 *         will write for this text
+	 */
+	public static int encodedLength(CharSequence s) {
+		final int len = s.length();
+		int n = 0;
+		for (int i = 0; i < len; i++) {
+			char c = s.charAt(i);
+			if (c < 0x80) {
+				n += 1;
+			} else if (c < 0x800) {
+				n += 2;
+			} else if (Character.isHighSurrogate(c) && i + 1 < len
+					&& Character.isLowSurrogate(s.charAt(i + 1))) {
+				n += 4;
+				i++;
+			} else {
+				n += 3;
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * Encode text into {@code dst}, which must have room for
+	 * {@link #encodedLength(CharSequence)} bytes. Unpaired surrogates become
+	 * U+FFFD.
+	 * @return offset just past the last byte written
+	 */
+	public static int encode(CharSequence s, byte[] dst, int off) {
+		final int len = s.length();
+		int d = off;
+		for (int i = 0; i < len; i++) {
+			char c = s.charAt(i);
+			if (c < 0x80) {
+				dst[d++] = (byte) c;
+			} else if (c < 0x800) {
+				dst[d++] = (byte) (0xc0 | (c >> 6));
+				dst[d++] = (byte) (0x80 | (c & 0x3f));
+			} else if (Character.isHighSurrogate(c) && i + 1 < len
+					&& Character.isLowSurrogate(s.charAt(i + 1))) {
+				int cp = Character.toCodePoint(c, s.charAt(++i));
+				dst[d++] = (byte) (0xf0 | (cp >> 18));
+				dst[d++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+				dst[d++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+				dst[d++] = (byte) (0x80 | (cp & 0x3f));
+			} else {
+				if (c >= 0xd800 && c <= 0xdfff)
+					c = REPLACEMENT;
+				dst[d++] = (byte) (0xe0 | (c >> 12));
+				dst[d++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+				dst[d++] = (byte) (0x80 | (c & 0x3f));
+			}
+		}
+		return d;
+	}
+
+	public static String toString(byte[] src, int off, int len) {
+		char[] chars = new char[len];
+		int n = decode(src, off, len, chars, 0);
+		return new String(chars, 0, n);
+	}
+}
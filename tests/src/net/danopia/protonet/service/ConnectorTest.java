@@ -0,0 +1,213 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.danopia.protonet.service;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+/**
+ * Races {@link Connector} against listeners on the loopback addresses and
+ * an address nothing answers on.
+ */
+public class ConnectorTest extends TestCase {
+	/* TEST-NET-1, never routed; a connect there hangs or fails at once */
+	private static final byte[] UNROUTABLE = { (byte) 192, 0, 2, 1 };
+
+	/* remembers every channel the connector registers */
+	private static class RecordingLoop extends SelectorLoop {
+		final List<SocketChannel> channels = new ArrayList<SocketChannel>();
+
+		RecordingLoop() throws IOException {
+			super();
+		}
+
+		@Override
+		public void register(SelectableChannel channel, int ops, SocketHandler handler) {
+			synchronized (channels) {
+				channels.add((SocketChannel) channel);
+			}
+			super.register(channel, ops, handler);
+		}
+	}
+
+	private static class Result implements Connector.Callback {
+		final CountDownLatch done = new CountDownLatch(1);
+		volatile SocketChannel connected;
+		volatile IOException failure;
+		volatile int calls;
+
+		public void onConnected(SocketChannel channel) {
+			connected = channel;
+			calls++;
+			done.countDown();
+		}
+
+		public void onFailed(IOException e) {
+			failure = e;
+			calls++;
+			done.countDown();
+		}
+	}
+
+	private RecordingLoop loop;
+	private final List<ServerSocketChannel> servers = new ArrayList<ServerSocketChannel>();
+
+	@Override
+	protected void setUp() throws Exception {
+		loop = new RecordingLoop();
+		loop.start();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		loop.shutdown();
+		for (ServerSocketChannel server : servers)
+			server.close();
+		synchronized (loop.channels) {
+			for (SocketChannel channel : loop.channels)
+				channel.close();
+		}
+	}
+
+	/* a listener on this address, or null if the address isn't usable here */
+	private ServerSocketChannel listen(InetAddress address) {
+		try {
+			ServerSocketChannel server = ServerSocketChannel.open();
+			server.socket().bind(new InetSocketAddress(address, 0));
+			servers.add(server);
+			return server;
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	private static int port(ServerSocketChannel server) {
+		return server.socket().getLocalPort();
+	}
+
+	private Result connect(InetAddress[] addresses, int port) throws InterruptedException {
+		final Result result = new Result();
+		final Connector connector = new Connector(loop, addresses, port, result);
+		loop.post(new Runnable() {
+			public void run() {
+				connector.start();
+			}
+		});
+		assertTrue("connector never finished", result.done.await(10, TimeUnit.SECONDS));
+		return result;
+	}
+
+	/* every channel but the winner has been closed */
+	private void assertLosersClosed(SocketChannel winner) {
+		synchronized (loop.channels) {
+			for (SocketChannel channel : loop.channels) {
+				if (channel != winner)
+					assertFalse("loser still open: " + channel, channel.isOpen());
+			}
+		}
+	}
+
+	public void testFirstCompletionWins() throws Exception {
+		InetAddress v4 = InetAddress.getByName("127.0.0.1");
+		InetAddress v6 = InetAddress.getByName("::1");
+
+		// both listeners on one port, where the system allows it
+		ServerSocketChannel server4 = listen(v4);
+		assertNotNull(server4);
+		int port = port(server4);
+		ServerSocketChannel server6 = null;
+		try {
+			server6 = ServerSocketChannel.open();
+			server6.socket().bind(new InetSocketAddress(v6, port));
+			servers.add(server6);
+		} catch (IOException e) {
+			// no IPv6 loopback here; the race is between IPv4 addresses only
+			server6 = null;
+		}
+
+		InetAddress[] addresses = (server6 != null)
+				? new InetAddress[] { v4, InetAddress.getByAddress(UNROUTABLE), v6 }
+				: new InetAddress[] { InetAddress.getByAddress(UNROUTABLE), v4 };
+
+		Result result = connect(addresses, port);
+		assertNull(result.failure);
+		assertNotNull(result.connected);
+		assertTrue(result.connected.isConnected());
+
+		// IPv6 goes first, so with both listeners it is the one to win
+		InetAddress remote = result.connected.socket().getInetAddress();
+		assertEquals((server6 != null) ? v6 : v4, remote);
+
+		assertLosersClosed(result.connected);
+
+		// nothing else starts or reports once there is a winner
+		int started;
+		synchronized (loop.channels) {
+			started = loop.channels.size();
+		}
+		Thread.sleep(3 * Connector.ATTEMPT_DELAY);
+		synchronized (loop.channels) {
+			assertEquals(started, loop.channels.size());
+		}
+		assertEquals(1, result.calls);
+	}
+
+	public void testStalledAddressIsRacedAndClosed() throws Exception {
+		InetAddress v4 = InetAddress.getByName("127.0.0.1");
+		ServerSocketChannel server = listen(v4);
+		assertNotNull(server);
+
+		// same family, so the unroutable address really is tried first
+		InetAddress[] addresses = { InetAddress.getByAddress(UNROUTABLE), v4 };
+
+		long start = System.currentTimeMillis();
+		Result result = connect(addresses, port(server));
+		long took = System.currentTimeMillis() - start;
+
+		assertNotNull(result.connected);
+		assertEquals(v4, result.connected.socket().getInetAddress());
+		assertTrue("took " + took + "ms", took < 4 * Connector.ATTEMPT_DELAY);
+		assertLosersClosed(result.connected);
+	}
+
+	public void testEveryAddressFailing() throws Exception {
+		InetAddress v4 = InetAddress.getByName("127.0.0.1");
+
+		// a port that was free a moment ago, so nothing answers on it
+		ServerSocketChannel server = listen(v4);
+		assertNotNull(server);
+		int port = port(server);
+		server.close();
+		servers.remove(server);
+
+		Result result = connect(new InetAddress[] { v4 }, port);
+		assertNull(result.connected);
+		assertNotNull(result.failure);
+		assertLosersClosed(null);
+	}
+}
@@ -0,0 +1,77 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.danopia.protonet.util;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that {@link HistoryBuffer} arenas stay in proportion to the lines
+ * it actually keeps.
+ */
+public class HistoryBufferTest extends TestCase {
+	private static final String LINE;
+	static {
+		StringBuilder line = new StringBuilder();
+		for (int i = 0; i < 100; i++)
+			line.append('x');
+		LINE = line.toString();
+	}
+
+	private static void fill(HistoryBuffer buffer, int lines) {
+		for (int i = 0; i < lines; i++)
+			buffer.add(LINE);
+	}
+
+	private static void assertRetainedNear(HistoryBuffer buffer, long live) {
+		long retained = buffer.getRetainedBytes();
+		assertTrue("retained " + retained + " bytes for " + live + " live",
+				retained >= live && retained <= live * 3 / 2);
+	}
+
+	public void testDefaultScrollback() {
+		HistoryBuffer buffer = new HistoryBuffer(140);
+		fill(buffer, 10000);
+		assertEquals(140, buffer.size());
+		assertRetainedNear(buffer, 140 * LINE.length());
+	}
+
+	public void testLargeScrollback() {
+		HistoryBuffer buffer = new HistoryBuffer(1000);
+		fill(buffer, 10000);
+		assertRetainedNear(buffer, 1000 * LINE.length());
+	}
+
+	public void testShrinkingReleasesArenas() {
+		HistoryBuffer buffer = new HistoryBuffer(1000);
+		fill(buffer, 5000);
+		buffer.setCapacity(100);
+		fill(buffer, 1000);
+		assertRetainedNear(buffer, 100 * LINE.length());
+	}
+
+	public void testLinesSurviveArenaTurnover() {
+		HistoryBuffer buffer = new HistoryBuffer(50);
+		for (int i = 0; i < 5000; i++)
+			buffer.add(Integer.toString(i));
+
+		HistoryBuffer.Snapshot snapshot = buffer.snapshot();
+		for (long seq = snapshot.getFirst(); seq < snapshot.getEnd(); seq++)
+			assertEquals(Long.toString(seq), snapshot.get(seq));
+	}
+}